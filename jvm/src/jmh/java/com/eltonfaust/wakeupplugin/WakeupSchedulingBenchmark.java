@@ -0,0 +1,207 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths of the scheduling, on the in-memory backend and store: the next fire computation, parse, compile and
+ * serialize of the alarm list, request code generation, arming all the alarms (with and without the scheduled
+ * event JSON), an alarm fire and the queue commit to disk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WakeupSchedulingBenchmark {
+    // 2024-01-01T00:00:00Z
+    private static final long NOW = 1704067200000L;
+
+    private static final TimeZone ZONE = TimeZone.getTimeZone("America/New_York");
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int alarmCount;
+
+    private JSONArray alarms;
+
+    private String serialized;
+
+    private WakeupAlarmRule[] rules;
+
+    private WakeupMemorySchedulerStore store;
+
+    private WakeupSchedulerCore core;
+
+    private WakeupSchedulerCore coreWithEvents;
+
+    private WakeupMemorySchedulerStore fireStore;
+
+    private WakeupSchedulerCore fireCore;
+
+    private WakeupFakeClock fireClock;
+
+    private WakeupAlarmQueue fileQueue;
+
+    private File queueFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.alarms = WakeupSimulation.buildAlarms(this.alarmCount, 42);
+        this.serialized = this.alarms.toString();
+
+        WakeupFakeClock clock = new WakeupFakeClock(NOW, ZONE);
+        this.store = new WakeupMemorySchedulerStore();
+        this.core = new WakeupSchedulerCore(clock, new WakeupMemoryAlarmBackend(), this.store, new DiscardingListener(false));
+        this.core.replaceAlarms(this.alarms);
+        this.rules = this.store.toArray();
+
+        WakeupMemorySchedulerStore eventsStore = new WakeupMemorySchedulerStore();
+        eventsStore.replaceAll(this.alarms, NOW, ZONE);
+        this.coreWithEvents = new WakeupSchedulerCore(clock, new WakeupMemoryAlarmBackend(), eventsStore, new DiscardingListener(true));
+
+        this.fireClock = new WakeupFakeClock(NOW, ZONE);
+        this.fireStore = new WakeupMemorySchedulerStore();
+        this.fireCore = new WakeupSchedulerCore(this.fireClock, new WakeupMemoryAlarmBackend(), this.fireStore, new DiscardingListener(false));
+        this.fireCore.replaceAlarms(this.alarms);
+
+        this.queueFile = File.createTempFile("wakeup-queue", ".bin");
+        this.fileQueue = new WakeupAlarmQueue(this.queueFile);
+
+        for (int key : this.store.getQueue().getKeysByTime()) {
+            this.fileQueue.schedule(key, this.store.getQueue().getTime(key));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.queueFile.delete();
+    }
+
+    @Benchmark
+    public long nextOccurrence() {
+        long sum = 0;
+
+        for (WakeupAlarmRule rule : this.rules) {
+            for (int slot = 0; slot < WakeupAlarmRule.SLOT_COUNT; slot++) {
+                sum += rule.nextOccurrence(slot, NOW, ZONE);
+            }
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public JSONArray parseAlarmList() throws JSONException {
+        return new JSONArray(this.serialized);
+    }
+
+    @Benchmark
+    public String serializeAlarmList() {
+        return this.alarms.toString();
+    }
+
+    @Benchmark
+    public WakeupMemorySchedulerStore compileAlarmList() throws JSONException {
+        WakeupMemorySchedulerStore compiled = new WakeupMemorySchedulerStore();
+        compiled.replaceAll(this.alarms, NOW, ZONE);
+
+        return compiled;
+    }
+
+    @Benchmark
+    public long requestCodes() {
+        long sum = 0;
+
+        for (WakeupAlarmRule rule : this.rules) {
+            int slots = rule.getSlots();
+
+            for (int slot = 0; slot < WakeupAlarmRule.SLOT_COUNT; slot++) {
+                if ((slots & (1 << slot)) != 0) {
+                    sum += WakeupSchedulerCore.getRequestCode(rule.id, slot);
+                }
+            }
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public void setAlarms() throws IOException {
+        this.core.setAlarms();
+    }
+
+    /**
+     * As `setAlarms`, building the JSON of the scheduled event
+     */
+    @Benchmark
+    public void setAlarmsWithEvents() throws IOException {
+        this.coreWithEvents.setAlarms();
+    }
+
+    /**
+     * The queue head fires and is rearmed, the clock keeps moving through the schedule
+     */
+    @Benchmark
+    public Object alarmFired() {
+        WakeupAlarmQueue queue = this.fireStore.getQueue();
+        int key = queue.peekKey();
+        this.fireClock.setTime(queue.peekTime());
+
+        return this.fireCore.onAlarmFired(WakeupAlarmQueue.getAlarmId(key), WakeupAlarmQueue.getSlot(key));
+    }
+
+    @Benchmark
+    public void commitQueue() throws IOException {
+        this.fileQueue.commit();
+    }
+
+    /**
+     * Drops the events, only the last scheduled one is kept, so it's not optimized away
+     */
+    private static class DiscardingListener implements WakeupSchedulerCore.Listener {
+        private final boolean scheduledEvents;
+
+        volatile JSONArray lastScheduled;
+
+        DiscardingListener(boolean scheduledEvents) {
+            this.scheduledEvents = scheduledEvents;
+        }
+
+        @Override
+        public boolean isScheduledEventEnabled() {
+            return this.scheduledEvents;
+        }
+
+        @Override
+        public void onScheduled(JSONArray alarms) {
+            this.lastScheduled = alarms;
+        }
+
+        @Override
+        public void onMissed(JSONArray alarms) {
+        }
+
+        @Override
+        public void log(String log) {
+        }
+    }
+}
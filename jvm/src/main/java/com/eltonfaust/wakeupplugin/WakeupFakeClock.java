@@ -0,0 +1,54 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.TimeZone;
+
+/**
+ * Settable `WakeupClock`, the elapsed time counts from the last simulated boot
+ */
+public class WakeupFakeClock implements WakeupClock {
+    private long now;
+
+    private long bootTime;
+
+    private TimeZone zone;
+
+    public WakeupFakeClock(long now, TimeZone zone) {
+        this.now = now;
+        this.bootTime = now;
+        this.zone = zone;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return this.now;
+    }
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return this.now - this.bootTime;
+    }
+
+    @Override
+    public synchronized TimeZone getTimeZone() {
+        return this.zone;
+    }
+
+    public synchronized void setTime(long now) {
+        this.now = now;
+    }
+
+    public synchronized void advance(long deltaMs) {
+        this.now += deltaMs;
+    }
+
+    public synchronized void setTimeZone(TimeZone zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * The device booted now, the elapsed time restarts
+     */
+    public synchronized void reboot() {
+        this.bootTime = this.now;
+    }
+}
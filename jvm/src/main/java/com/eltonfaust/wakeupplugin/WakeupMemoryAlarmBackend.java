@@ -0,0 +1,147 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory `WakeupAlarmBackend`, behaving as the AlarmManager: setting a request code again replaces it,
+ * a fired alarm is no longer armed and a reboot drops them all; every call is counted
+ */
+public class WakeupMemoryAlarmBackend implements WakeupAlarmBackend {
+    /**
+     * An armed alarm, the stream pre-roll has no alarm id
+     */
+    public static class Armed {
+        public final int requestCode;
+        public final long time;
+        public final int alarmId;
+        public final int slot;
+        public final boolean preroll;
+
+        Armed(int requestCode, long time, int alarmId, int slot, boolean preroll) {
+            this.requestCode = requestCode;
+            this.time = time;
+            this.alarmId = alarmId;
+            this.slot = slot;
+            this.preroll = preroll;
+        }
+    }
+
+    private final Map<Integer, Armed> armed = new TreeMap<Integer, Armed>();
+
+    private int setCount = 0;
+
+    private int cancelCount = 0;
+
+    private boolean exactAlarms = true;
+
+    private boolean restoreOnBoot = false;
+
+    @Override
+    public synchronized void set(int requestCode, long time, int alarmId, int slot) {
+        this.armed.put(requestCode, new Armed(requestCode, time, alarmId, slot, false));
+        this.setCount++;
+    }
+
+    @Override
+    public synchronized void setPreroll(int requestCode, long time, long fireAt) {
+        this.armed.put(requestCode, new Armed(requestCode, time, -1, -1, true));
+        this.setCount++;
+    }
+
+    @Override
+    public synchronized void cancel(int requestCode) {
+        this.armed.remove(requestCode);
+        this.cancelCount++;
+    }
+
+    @Override
+    public synchronized boolean isArmed(int requestCode) {
+        return this.armed.containsKey(requestCode);
+    }
+
+    @Override
+    public synchronized boolean canScheduleExactAlarms() {
+        return this.exactAlarms;
+    }
+
+    @Override
+    public synchronized void setRestoreOnBoot(boolean enabled) {
+        this.restoreOnBoot = enabled;
+    }
+
+    public synchronized void setExactAlarms(boolean exactAlarms) {
+        this.exactAlarms = exactAlarms;
+    }
+
+    public synchronized boolean isRestoreOnBoot() {
+        return this.restoreOnBoot;
+    }
+
+    /**
+     * The armed alarm of the request code, or null
+     */
+    public synchronized Armed get(int requestCode) {
+        return this.armed.get(requestCode);
+    }
+
+    /**
+     * Request codes armed, sorted
+     */
+    public synchronized int[] getRequestCodes() {
+        int[] requestCodes = new int[this.armed.size()];
+        int i = 0;
+
+        for (int requestCode : this.armed.keySet()) {
+            requestCodes[i++] = requestCode;
+        }
+
+        return requestCodes;
+    }
+
+    public synchronized int size() {
+        return this.armed.size();
+    }
+
+    /**
+     * The soonest alarm to fire, the pre-roll isn't included, or null
+     */
+    public synchronized Armed next() {
+        Armed next = null;
+
+        for (Armed alarm : this.armed.values()) {
+            if (!alarm.preroll && (next == null || alarm.time < next.time)) {
+                next = alarm;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * The alarm fired, as the system it's no longer armed
+     */
+    public synchronized void fire(Armed alarm) {
+        this.armed.remove(alarm.requestCode);
+    }
+
+    /**
+     * The system drops every alarm on a reboot or force stop
+     */
+    public synchronized void reboot() {
+        this.armed.clear();
+    }
+
+    public synchronized int getSetCount() {
+        return this.setCount;
+    }
+
+    public synchronized int getCancelCount() {
+        return this.cancelCount;
+    }
+
+    public synchronized void resetCounts() {
+        this.setCount = 0;
+        this.cancelCount = 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-memory `WakeupSchedulerStore`, with the same rules of `WakeupAlarmStore` (sorted by id, an invalid list
+ * keeps the current alarms) and the scheduler settings of the default preferences, commits are only counted
+ */
+public class WakeupMemorySchedulerStore implements WakeupSchedulerStore {
+    private final TreeMap<Integer, WakeupAlarmRule> rules = new TreeMap<Integer, WakeupAlarmRule>();
+
+    private final Map<Integer, String> extras = new HashMap<Integer, String>();
+
+    // rules sorted by id, rebuilt after a change
+    private WakeupAlarmRule[] sorted = null;
+
+    private final WakeupAlarmQueue queue = new WakeupAlarmQueue(null);
+
+    private String schedulingMode = WakeupSchedulerCore.MODE_PER_ALARM;
+
+    private int legacyAlarmCount = -1;
+
+    private long fingerprint = 0;
+
+    private long armedAt = 0;
+
+    private int prerollSeconds = 0;
+
+    private int commitCount = 0;
+
+    @Override
+    public synchronized int size() {
+        return this.rules.size();
+    }
+
+    @Override
+    public synchronized WakeupAlarmRule get(int position) {
+        return this.toArray()[position];
+    }
+
+    @Override
+    public synchronized WakeupAlarmRule find(int id) {
+        return this.rules.get(id);
+    }
+
+    @Override
+    public synchronized WakeupAlarmRule[] toArray() {
+        if (this.sorted == null) {
+            this.sorted = this.rules.values().toArray(new WakeupAlarmRule[0]);
+        }
+
+        return this.sorted;
+    }
+
+    @Override
+    public synchronized void put(WakeupAlarmRule rule, String extra) {
+        this.rules.put(rule.id, rule);
+        this.extras.put(rule.id, extra);
+        this.sorted = null;
+    }
+
+    @Override
+    public synchronized boolean remove(int id) {
+        this.extras.remove(id);
+        this.sorted = null;
+
+        return this.rules.remove(id) != null;
+    }
+
+    @Override
+    public synchronized void replaceAll(JSONArray alarms, long now, TimeZone zone) throws JSONException {
+        WakeupAlarmRule[] compiled = new WakeupAlarmRule[alarms.length()];
+        String[] compiledExtras = new String[alarms.length()];
+        Set<Integer> ids = new HashSet<Integer>();
+
+        for (int i = 0; i < alarms.length(); i++) {
+            JSONObject alarm = alarms.getJSONObject(i);
+            compiled[i] = WakeupAlarmRule.compile(i, i, alarm, now, zone);
+            compiledExtras[i] = WakeupAlarmRule.parseExtra(alarm);
+
+            if (!ids.add(compiled[i].id)) {
+                throw new JSONException("alarm #" + i + ": duplicated id " + compiled[i].id);
+            }
+        }
+
+        this.rules.clear();
+        this.extras.clear();
+
+        for (int i = 0; i < compiled.length; i++) {
+            this.put(compiled[i], compiledExtras[i]);
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException {
+        this.commitCount++;
+    }
+
+    @Override
+    public WakeupAlarmQueue getQueue() {
+        return this.queue;
+    }
+
+    @Override
+    public synchronized String getSchedulingMode() {
+        return this.schedulingMode;
+    }
+
+    @Override
+    public synchronized void setSchedulingMode(String mode) {
+        this.schedulingMode = mode;
+    }
+
+    @Override
+    public synchronized int getLegacyAlarmCount() {
+        return this.legacyAlarmCount;
+    }
+
+    @Override
+    public synchronized void clearLegacyAlarmCount() {
+        this.legacyAlarmCount = -1;
+    }
+
+    @Override
+    public synchronized long getFingerprint() {
+        return this.fingerprint;
+    }
+
+    @Override
+    public synchronized long getArmedAt() {
+        return this.armedAt;
+    }
+
+    @Override
+    public synchronized void saveFingerprint(long fingerprint, long armedAt) {
+        this.fingerprint = fingerprint;
+        this.armedAt = armedAt;
+    }
+
+    @Override
+    public synchronized int getPrerollSeconds() {
+        return this.prerollSeconds;
+    }
+
+    /**
+     * As an upgrade from a version with position based ids, that left `alarms_count` on the preferences
+     */
+    public synchronized void setLegacyAlarmCount(int legacyAlarmCount) {
+        this.legacyAlarmCount = legacyAlarmCount;
+    }
+
+    public synchronized void setPrerollSeconds(int prerollSeconds) {
+        this.prerollSeconds = prerollSeconds;
+    }
+
+    public synchronized String getExtra(int id) {
+        return this.extras.get(id);
+    }
+
+    public synchronized int getCommitCount() {
+        return this.commitCount;
+    }
+}
@@ -0,0 +1,62 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+
+/**
+ * `WakeupSchedulerCore.Listener` that keeps every event, in place of the plugin
+ */
+public class WakeupRecordingListener implements WakeupSchedulerCore.Listener {
+    public final List<JSONArray> scheduled = new ArrayList<JSONArray>();
+
+    public final List<JSONArray> missed = new ArrayList<JSONArray>();
+
+    public final List<String> logs = new ArrayList<String>();
+
+    private boolean scheduledEvents = true;
+
+    private boolean verbose = false;
+
+    public void setScheduledEvents(boolean scheduledEvents) {
+        this.scheduledEvents = scheduledEvents;
+    }
+
+    /**
+     * Print the logs of the core, besides keeping them
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @Override
+    public boolean isScheduledEventEnabled() {
+        return this.scheduledEvents;
+    }
+
+    @Override
+    public void onScheduled(JSONArray alarms) {
+        this.scheduled.add(alarms);
+    }
+
+    @Override
+    public void onMissed(JSONArray alarms) {
+        this.missed.add(alarms);
+    }
+
+    @Override
+    public void log(String log) {
+        this.logs.add(log);
+
+        if (this.verbose) {
+            System.out.println(log);
+        }
+    }
+
+    public void clear() {
+        this.scheduled.clear();
+        this.missed.clear();
+        this.logs.clear();
+    }
+}
@@ -0,0 +1,364 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs the scheduling core on the in-memory backend through simulated years of alarm fires, on both scheduling modes,
+ * with reboots, force stops and a time zone change on the way
+ *
+ * Every fire (and every alarm reported as missed while the device was off) is checked against the occurrences
+ * computed with `Calendar`, exits with 1 on any difference
+ */
+public class WakeupSimulation {
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    // 2023-11-14T22:13:20Z, the simulation crosses both DST transitions of the zone
+    private static final long START = 1700000000000L;
+
+    private static final TimeZone ZONE = TimeZone.getTimeZone("America/New_York");
+
+    private static final String[] DAYS = { "sunday", "monday", "tuesday", "wednesday", "thursday", "friday", "saturday" };
+
+    private final String mode;
+
+    private final int alarmCount;
+
+    private final int years;
+
+    private final WakeupFakeClock clock = new WakeupFakeClock(START, ZONE);
+
+    private final WakeupMemoryAlarmBackend backend = new WakeupMemoryAlarmBackend();
+
+    private final WakeupMemorySchedulerStore store = new WakeupMemorySchedulerStore();
+
+    private final WakeupRecordingListener listener = new WakeupRecordingListener();
+
+    private final WakeupSchedulerCore core = new WakeupSchedulerCore(this.clock, this.backend, this.store, this.listener);
+
+    // "alarmId@time" of every fire and every missed alarm
+    private final TreeSet<String> fired = new TreeSet<String>();
+
+    private final List<String> errors = new ArrayList<String>();
+
+    // the alarms as given, one time alarms are removed once fired
+    private WakeupAlarmRule[] rules;
+
+    private int fires = 0;
+
+    // the device was off on [offFrom, offTo), only the next occurrence of each alarm slot is reported as missed
+    private long offFrom = 0;
+    private long offTo = 0;
+
+    private int missed = 0;
+
+    public WakeupSimulation(String mode, int alarmCount, int years) {
+        this.mode = mode;
+        this.alarmCount = alarmCount;
+        this.years = years;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean failed = false;
+
+        failed |= !new WakeupSimulation(WakeupSchedulerCore.MODE_PER_ALARM, 200, 2).run();
+        failed |= !new WakeupSimulation(WakeupSchedulerCore.MODE_SINGLE_SLOT, 200, 2).run();
+        failed |= !runTimeZoneChange();
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Alarms of every type, with a seeded random schedule, never on the hours skipped or repeated by the DST
+     */
+    public static JSONArray buildAlarms(int count, long seed) throws JSONException {
+        Random random = new Random(seed);
+        JSONArray alarms = new JSONArray();
+
+        for (int i = 0; i < count; i++) {
+            JSONObject alarm = new JSONObject();
+            JSONObject time = new JSONObject();
+            int hour = random.nextInt(21);
+
+            time.put("hour", hour == 0 ? 0 : hour + 3);
+            time.put("minute", random.nextInt(60));
+
+            alarm.put("id", i + 1);
+            alarm.put("time", time);
+
+            if (i % 10 == 9) {
+                alarm.put("type", "onetime");
+            } else if (i % 10 == 8) {
+                alarm.put("type", "interval");
+                alarm.put("interval", 30 + random.nextInt(24 * 60));
+            } else {
+                JSONArray days = new JSONArray();
+
+                for (int day = 0; day < 7; day++) {
+                    if (random.nextInt(3) == 0 || (day == 6 && days.length() == 0)) {
+                        days.put(DAYS[day]);
+                    }
+                }
+
+                alarm.put("type", "daylist");
+                alarm.put("days", days);
+            }
+
+            alarm.put("extra", new JSONObject().put("index", i));
+            alarms.put(alarm);
+        }
+
+        return alarms;
+    }
+
+    public boolean run() throws Exception {
+        long startTime = System.nanoTime();
+        long end = START + this.years * 365 * DAY_MS;
+        // the device is off for a few hours, then the app is force stopped
+        long rebootAt = START + 100 * DAY_MS;
+        long forceStopAt = START + 200 * DAY_MS;
+
+        this.store.setSchedulingMode(this.mode);
+        this.core.replaceAlarms(buildAlarms(this.alarmCount, 42));
+        this.rules = this.store.toArray();
+
+        while (true) {
+            WakeupMemoryAlarmBackend.Armed next = this.backend.next();
+
+            if (next == null || next.time >= end) {
+                break;
+            }
+
+            if (rebootAt > 0 && next.time >= rebootAt) {
+                this.reboot(rebootAt, 6 * HOUR_MS);
+                rebootAt = 0;
+                continue;
+            }
+
+            if (forceStopAt > 0 && next.time >= forceStopAt) {
+                this.clock.setTime(forceStopAt);
+                this.backend.reboot();
+                this.core.reconcileAlarms();
+                forceStopAt = 0;
+                continue;
+            }
+
+            this.fire(next);
+        }
+
+        this.verify(end);
+
+        System.out.println(String.format(
+            "%s: %d alarms, %d fires and %d missed over %d years, %d set and %d cancelled, %d errors in %dms",
+            this.mode, this.alarmCount, this.fires, this.missed, this.years,
+            this.backend.getSetCount(), this.backend.getCancelCount(), this.errors.size(),
+            (System.nanoTime() - startTime) / 1000000
+        ));
+
+        for (int i = 0; i < Math.min(10, this.errors.size()); i++) {
+            System.out.println("  " + this.errors.get(i));
+        }
+
+        return this.errors.isEmpty();
+    }
+
+    /**
+     * As the AlarmManager and `WakeupReceiver`, the alarm is dropped from the backend, then the core reschedules it,
+     * the app removes a one time alarm on its wakeup event, otherwise a later rearm sets it for the next day
+     */
+    private void fire(WakeupMemoryAlarmBackend.Armed alarm) throws Exception {
+        this.clock.setTime(alarm.time);
+        this.backend.fire(alarm);
+
+        List<Integer> firedIds = new ArrayList<Integer>();
+        firedIds.add(alarm.alarmId);
+        firedIds.addAll(this.core.onAlarmFired(alarm.alarmId, alarm.slot));
+
+        for (int alarmId : firedIds) {
+            this.addFire(alarmId, alarm.time);
+            WakeupAlarmRule rule = this.store.find(alarmId);
+
+            if (rule != null && rule.type == WakeupAlarmRule.TYPE_ONETIME) {
+                this.core.removeAlarm(alarmId);
+            }
+        }
+    }
+
+    /**
+     * As `WakeupBootReceiver`, the alarms that should have fired while off are reported, the others armed again
+     */
+    private void reboot(long at, long offMs) throws Exception {
+        this.offFrom = at;
+        this.offTo = at + offMs;
+        this.clock.setTime(at + offMs);
+        this.clock.reboot();
+        this.backend.reboot();
+        this.listener.missed.clear();
+
+        int[] keys = this.core.beginRestore();
+        int position = 0;
+
+        while (position < keys.length) {
+            position = this.core.restoreAlarmsChunk(keys, position, 50);
+        }
+
+        this.core.finishRestore(true);
+
+        for (JSONArray entries : this.listener.missed) {
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                this.missed++;
+                this.fired.add(entry.getInt("alarmId") + "@" + entry.getLong("date"));
+            }
+        }
+    }
+
+    private void addFire(int alarmId, long time) {
+        this.fires++;
+
+        if (!this.fired.add(alarmId + "@" + time)) {
+            this.errors.add("alarm " + alarmId + " fired twice at " + time);
+        }
+    }
+
+    private void verify(long end) throws JSONException {
+        TreeSet<String> expected = new TreeSet<String>();
+
+        for (WakeupAlarmRule rule : this.rules) {
+            boolean missedExpected = false;
+
+            for (long time : expectedFires(rule, START, end, ZONE)) {
+                if (time >= this.offFrom && time < this.offTo) {
+                    missedExpected = true;
+                    // not checked one by one, the missed report has the next occurrence of each slot
+                    this.fired.remove(rule.id + "@" + time);
+                } else {
+                    expected.add(rule.id + "@" + time);
+                }
+            }
+
+            if (missedExpected && !this.hasMissed(rule.id)) {
+                this.errors.add("alarm " + rule.id + " due while the device was off wasn't reported as missed");
+            }
+        }
+
+        for (String fire : expected) {
+            if (!this.fired.contains(fire)) {
+                this.errors.add("expected fire " + fire + " didn't happen");
+            }
+        }
+
+        for (String fire : this.fired) {
+            if (!expected.contains(fire)) {
+                this.errors.add("unexpected fire " + fire);
+            }
+        }
+    }
+
+    private boolean hasMissed(int alarmId) throws JSONException {
+        for (JSONArray entries : this.listener.missed) {
+            for (int i = 0; i < entries.length(); i++) {
+                if (entries.getJSONObject(i).getInt("alarmId") == alarmId) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Occurrences of the rule on [from, to), computed on the local calendar of the zone
+     */
+    static List<Long> expectedFires(WakeupAlarmRule rule, long from, long to, TimeZone zone) {
+        List<Long> result = new ArrayList<Long>();
+
+        if (rule.type == WakeupAlarmRule.TYPE_INTERVAL) {
+            for (long time = rule.start; time < to; time += rule.interval * MINUTE_MS) {
+                if (time >= from) {
+                    result.add(time);
+                }
+            }
+
+            return result;
+        }
+
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(from);
+        calendar.set(Calendar.HOUR_OF_DAY, rule.hour);
+        calendar.set(Calendar.MINUTE, rule.minute);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        while (calendar.getTimeInMillis() < to) {
+            long time = calendar.getTimeInMillis();
+            int day = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+
+            if (time >= from && time <= rule.until) {
+                if (rule.type == WakeupAlarmRule.TYPE_ONETIME) {
+                    result.add(time);
+                    break;
+                }
+
+                if (rule.hasDay(day)) {
+                    result.add(time);
+                }
+            }
+
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            calendar.set(Calendar.HOUR_OF_DAY, rule.hour);
+            calendar.set(Calendar.MINUTE, rule.minute);
+        }
+
+        return result;
+    }
+
+    /**
+     * The device moves to another zone, once reconciled every armed alarm is at its local time on the new zone
+     */
+    private static boolean runTimeZoneChange() throws Exception {
+        TimeZone lisbon = TimeZone.getTimeZone("Europe/Lisbon");
+        WakeupSimulation simulation = new WakeupSimulation(WakeupSchedulerCore.MODE_PER_ALARM, 50, 0);
+
+        simulation.core.replaceAlarms(buildAlarms(50, 7));
+        simulation.clock.setTimeZone(lisbon);
+        simulation.core.reconcileAlarms();
+
+        Calendar calendar = Calendar.getInstance(lisbon);
+        int checked = 0;
+
+        for (int requestCode : simulation.backend.getRequestCodes()) {
+            WakeupMemoryAlarmBackend.Armed armed = simulation.backend.get(requestCode);
+            WakeupAlarmRule rule = simulation.store.find(armed.alarmId);
+
+            if (rule == null || rule.type == WakeupAlarmRule.TYPE_INTERVAL) {
+                continue;
+            }
+
+            calendar.setTimeInMillis(armed.time);
+            checked++;
+
+            if (calendar.get(Calendar.HOUR_OF_DAY) != rule.hour || calendar.get(Calendar.MINUTE) != rule.minute) {
+                simulation.errors.add("alarm " + rule.id + " armed at " + calendar.getTime() + " after the zone change");
+            }
+        }
+
+        System.out.println("timeZoneChange: " + checked + " alarms checked, " + simulation.errors.size() + " errors");
+
+        for (String error : simulation.errors) {
+            System.out.println("  " + error);
+        }
+
+        return simulation.errors.isEmpty();
+    }
+}
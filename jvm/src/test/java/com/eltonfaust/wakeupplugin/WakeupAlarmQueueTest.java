@@ -0,0 +1,120 @@
+package com.eltonfaust.wakeupplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WakeupAlarmQueueTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keysMapToTheAlarmAndSlot() {
+        int key = WakeupAlarmQueue.getKey(1234, 5);
+
+        assertEquals(1234, WakeupAlarmQueue.getAlarmId(key));
+        assertEquals(5, WakeupAlarmQueue.getSlot(key));
+    }
+
+    @Test
+    public void headIsTheSoonest() {
+        WakeupAlarmQueue queue = new WakeupAlarmQueue(null);
+        Random random = new Random(1);
+        long[] times = new long[500];
+
+        for (int i = 0; i < times.length; i++) {
+            times[i] = random.nextInt(1000000);
+            queue.schedule(i, times[i]);
+        }
+
+        long previous = -1;
+
+        while (!queue.isEmpty()) {
+            long time = queue.peekTime();
+            int key = queue.poll();
+
+            assertTrue(time >= previous);
+            assertEquals(times[key], time);
+            previous = time;
+        }
+
+        assertEquals(-1, queue.poll());
+        assertEquals(-1, queue.peekTime());
+    }
+
+    @Test
+    public void schedulingAgainMovesTheEntry() {
+        WakeupAlarmQueue queue = new WakeupAlarmQueue(null);
+        queue.schedule(1, 100);
+        queue.schedule(2, 200);
+        queue.schedule(3, 300);
+
+        queue.schedule(3, 50);
+        assertEquals(3, queue.peekKey());
+
+        queue.schedule(3, 400);
+        assertEquals(1, queue.peekKey());
+        assertEquals(3, queue.size());
+        assertArrayEquals(new int[] { 1, 2, 3 }, queue.getKeysByTime());
+    }
+
+    @Test
+    public void removesAnyEntry() {
+        WakeupAlarmQueue queue = new WakeupAlarmQueue(null);
+        queue.schedule(1, 100);
+        queue.schedule(2, 200);
+        queue.schedule(3, 300);
+
+        assertTrue(queue.remove(2));
+        assertFalse(queue.remove(2));
+        assertEquals(-1, queue.getTime(2));
+        assertArrayEquals(new int[] { 1, 3 }, queue.getKeysByTime());
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void committedQueueIsLoadedBack() throws IOException {
+        File file = new File(this.folder.getRoot(), WakeupAlarmQueue.FILE_NAME);
+        WakeupAlarmQueue queue = new WakeupAlarmQueue(file);
+
+        for (int i = 0; i < 100; i++) {
+            queue.schedule(i, 1000 - i);
+        }
+
+        queue.commit();
+
+        WakeupAlarmQueue loaded = new WakeupAlarmQueue(file);
+        loaded.load();
+
+        assertEquals(100, loaded.size());
+        assertArrayEquals(queue.getKeysByTime(), loaded.getKeysByTime());
+        assertEquals(901, loaded.peekTime());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAnotherFile() throws IOException {
+        File file = this.folder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        } finally {
+            output.close();
+        }
+
+        new WakeupAlarmQueue(file).load();
+    }
+}
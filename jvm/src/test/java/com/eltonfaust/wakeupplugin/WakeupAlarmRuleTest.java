@@ -0,0 +1,165 @@
+package com.eltonfaust.wakeupplugin;
+
+import static com.eltonfaust.wakeupplugin.WakeupSchedulerCoreTest.daylist;
+import static com.eltonfaust.wakeupplugin.WakeupSchedulerCoreTest.interval;
+import static com.eltonfaust.wakeupplugin.WakeupSchedulerCoreTest.onetime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.TimeZone;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class WakeupAlarmRuleTest {
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    // 2024-01-01T00:00:00Z, a monday
+    private static final long MONDAY = 1704067200000L;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void compilesEveryType() throws Exception {
+        WakeupAlarmRule daylist = WakeupAlarmRule.compile(0, 0, daylist(4, 7, 30, "sunday", "saturday"), MONDAY, UTC);
+
+        assertEquals(4, daylist.id);
+        assertEquals(WakeupAlarmRule.TYPE_DAYLIST, daylist.type);
+        assertEquals((1 << 0) | (1 << 6), daylist.getSlots());
+        assertTrue(daylist.hasDay(6));
+        assertFalse(daylist.hasDay(1));
+
+        WakeupAlarmRule onetime = WakeupAlarmRule.compile(0, 0, onetime(5, 7, 30), MONDAY, UTC);
+        assertEquals(1 << WakeupAlarmRule.SLOT_ONETIME, onetime.getSlots());
+        assertEquals("onetime", onetime.getTypeName());
+
+        // without an id the default one is used
+        JSONObject withoutId = onetime(0, 7, 30);
+        withoutId.remove("id");
+        assertEquals(12, WakeupAlarmRule.compile(0, 12, withoutId, MONDAY, UTC).id);
+    }
+
+    @Test
+    public void rejectsInvalidAlarmsWithTheirIndex() throws Exception {
+        this.assertInvalid(onetime(1, 24, 0), "alarm #3", "invalid hour 24");
+        this.assertInvalid(onetime(1, 7, 60), "alarm #3", "invalid minute 60");
+        this.assertInvalid(onetime(WakeupAlarmRule.MAX_ID + 1, 7, 0), "alarm #3", "id out of range");
+        this.assertInvalid(daylist(1, 7, 0), "alarm #3", "empty day list");
+        this.assertInvalid(daylist(1, 7, 0, "someday"), "alarm #3", "unknown day 'someday'");
+        this.assertInvalid(interval(1, 7, 0, 0), "alarm #3", "invalid interval 0");
+        this.assertInvalid(onetime(1, 7, 0).put("type", "weekly"), "alarm #3", "unknown type 'weekly'");
+        this.assertInvalid(new JSONObject().put("id", 1), "alarm #3", "missing time");
+    }
+
+    @Test
+    public void nextOccurrenceOfADaylist() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "monday", "wednesday"), MONDAY, UTC);
+
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.nextOccurrence(1, MONDAY, UTC));
+        // at the exact time it's still due
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.nextOccurrence(1, MONDAY + 7 * HOUR_MS, UTC));
+        // past it, the next week
+        assertEquals(MONDAY + 7 * DAY_MS + 7 * HOUR_MS, rule.nextOccurrence(1, MONDAY + 7 * HOUR_MS + 1, UTC));
+        assertEquals(MONDAY + 2 * DAY_MS + 7 * HOUR_MS, rule.nextOccurrence(3, MONDAY, UTC));
+        // a day not on the list
+        assertEquals(-1, rule.nextOccurrence(2, MONDAY, UTC));
+    }
+
+    @Test
+    public void nextOccurrenceOfAOnetime() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, onetime(1, 7, 0), MONDAY, UTC);
+
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.nextOccurrence(WakeupAlarmRule.SLOT_ONETIME, MONDAY, UTC));
+        assertEquals(MONDAY + DAY_MS + 7 * HOUR_MS, rule.nextOccurrence(WakeupAlarmRule.SLOT_ONETIME, MONDAY + 8 * HOUR_MS, UTC));
+    }
+
+    @Test
+    public void intervalIsAnchoredOnItsFirstFire() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, interval(1, 7, 0, 90), MONDAY, UTC);
+
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.start);
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.nextOccurrence(WakeupAlarmRule.SLOT_ONETIME, MONDAY, UTC));
+        assertEquals(MONDAY + 8 * HOUR_MS + 30 * MINUTE_MS, rule.nextOccurrence(WakeupAlarmRule.SLOT_ONETIME, MONDAY + 7 * HOUR_MS + 1, UTC));
+        // compiled again later, the repetitions don't drift
+        WakeupAlarmRule later = WakeupAlarmRule.compile(0, 0, interval(1, 7, 0, 90).put("start", rule.start), MONDAY + 5 * DAY_MS, UTC);
+        assertEquals(rule.start, later.start);
+        assertEquals(0, (later.nextOccurrence(WakeupAlarmRule.SLOT_ONETIME, MONDAY + 5 * DAY_MS, UTC) - rule.start) % (90 * MINUTE_MS));
+    }
+
+    @Test
+    public void nothingPastTheEnd() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "monday").put("until", MONDAY + DAY_MS), MONDAY, UTC);
+
+        assertEquals(MONDAY + 7 * HOUR_MS, rule.nextOccurrence(1, MONDAY, UTC));
+        assertEquals(-1, rule.nextOccurrence(1, MONDAY + 8 * HOUR_MS, UTC));
+    }
+
+    @Test
+    public void localTimeIsKeptAcrossDst() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "monday"), MONDAY, NEW_YORK);
+
+        // EST, then EDT after 2024-03-10
+        long winter = rule.nextOccurrence(1, MONDAY, NEW_YORK);
+        long summer = rule.nextOccurrence(1, MONDAY + 70 * DAY_MS, NEW_YORK);
+
+        assertEquals(7 * HOUR_MS, (winter + NEW_YORK.getOffset(winter)) % DAY_MS);
+        assertEquals(12 * HOUR_MS, winter % DAY_MS);
+        assertEquals(7 * HOUR_MS, (summer + NEW_YORK.getOffset(summer)) % DAY_MS);
+        assertEquals(11 * HOUR_MS, summer % DAY_MS);
+    }
+
+    @Test
+    public void timeSkippedByDstMovesForward() throws Exception {
+        // 2024-03-10, 2:30 doesn't exist, fires at 3:30 EDT
+        long saturday = 1709985600000L;
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 2, 30, "sunday"), saturday, NEW_YORK);
+
+        assertEquals(1710055800000L, rule.nextOccurrence(0, saturday, NEW_YORK));
+    }
+
+    @Test
+    public void repeatedTimeFiresOnItsFirstOccurrence() throws Exception {
+        // 2024-11-03, 1:30 happens twice, fires at 1:30 EDT
+        long saturday = 1730548800000L;
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 1, 30, "sunday"), saturday, NEW_YORK);
+
+        assertEquals(1730611800000L, rule.nextOccurrence(0, saturday, NEW_YORK));
+    }
+
+    @Test
+    public void sameScheduleIgnoresTheDays() throws Exception {
+        WakeupAlarmRule rule = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "monday"), MONDAY, UTC);
+        WakeupAlarmRule otherDays = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "friday"), MONDAY, UTC);
+        WakeupAlarmRule otherTime = WakeupAlarmRule.compile(0, 0, daylist(1, 7, 5, "monday"), MONDAY, UTC);
+
+        assertTrue(rule.hasSameSchedule(otherDays));
+        assertFalse(rule.equals(otherDays));
+        assertFalse(rule.hasSameSchedule(otherTime));
+        assertEquals(rule, WakeupAlarmRule.compile(0, 0, daylist(1, 7, 0, "monday"), MONDAY, UTC));
+    }
+
+    @Test
+    public void extraIsKeptAsJson() throws Exception {
+        assertNull(WakeupAlarmRule.parseExtra(onetime(1, 7, 0)));
+        assertEquals("{\"a\":1}", WakeupAlarmRule.parseExtra(onetime(1, 7, 0).put("extra", new JSONObject().put("a", 1))));
+    }
+
+    private void assertInvalid(JSONObject alarm, String... messageParts) {
+        try {
+            WakeupAlarmRule.compile(3, 3, alarm, MONDAY, UTC);
+            fail("accepted " + alarm);
+        } catch (JSONException e) {
+            for (String part : messageParts) {
+                assertTrue(e.getMessage() + " doesn't contain " + part, e.getMessage().contains(part));
+            }
+        }
+    }
+}
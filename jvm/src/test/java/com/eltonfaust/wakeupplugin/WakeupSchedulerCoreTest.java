@@ -0,0 +1,495 @@
+package com.eltonfaust.wakeupplugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WakeupSchedulerCoreTest {
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    // 2024-01-01T00:00:00Z, a monday
+    private static final long MONDAY = 1704067200000L;
+
+    private static final int MONDAY_SLOT = 1;
+    private static final int FRIDAY_SLOT = 5;
+
+    private WakeupFakeClock clock;
+
+    private WakeupMemoryAlarmBackend backend;
+
+    private WakeupMemorySchedulerStore store;
+
+    private WakeupRecordingListener listener;
+
+    private WakeupSchedulerCore core;
+
+    @Before
+    public void setUp() {
+        this.clock = new WakeupFakeClock(MONDAY, TimeZone.getTimeZone("UTC"));
+        this.backend = new WakeupMemoryAlarmBackend();
+        this.store = new WakeupMemorySchedulerStore();
+        this.listener = new WakeupRecordingListener();
+        this.core = new WakeupSchedulerCore(this.clock, this.backend, this.store, this.listener);
+    }
+
+    @Test
+    public void armsEverySlotOnItsStableRequestCode() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(3, 7, 30, "monday", "friday"), onetime(8, 9, 0)));
+
+        assertArrayEquals(
+            new int[] {
+                WakeupSchedulerCore.getRequestCode(3, MONDAY_SLOT),
+                WakeupSchedulerCore.getRequestCode(3, FRIDAY_SLOT),
+                WakeupSchedulerCore.getRequestCode(8, WakeupAlarmRule.SLOT_ONETIME),
+            },
+            this.backend.getRequestCodes()
+        );
+
+        this.assertArmed(3, MONDAY_SLOT, MONDAY + 7 * HOUR_MS + 30 * MINUTE_MS);
+        this.assertArmed(3, FRIDAY_SLOT, MONDAY + 4 * DAY_MS + 7 * HOUR_MS + 30 * MINUTE_MS);
+        this.assertArmed(8, WakeupAlarmRule.SLOT_ONETIME, MONDAY + 9 * HOUR_MS);
+        assertEquals(3, this.backend.getSetCount());
+        assertTrue(this.backend.isRestoreOnBoot());
+        assertEquals(3, this.store.getQueue().size());
+    }
+
+    @Test
+    public void requestCodesDontDependOnThePosition() throws Exception {
+        this.core.replaceAlarms(alarms(onetime(5, 9, 0), onetime(9, 10, 0)));
+        int requestCode = WakeupSchedulerCore.getRequestCode(9, WakeupAlarmRule.SLOT_ONETIME);
+        assertNotNull(this.backend.get(requestCode));
+
+        this.core.removeAlarm(5);
+
+        // the other alarm keeps its request code, nothing else is touched
+        assertArrayEquals(new int[] { requestCode }, this.backend.getRequestCodes());
+        assertEquals(MONDAY + 10 * HOUR_MS, this.backend.get(requestCode).time);
+    }
+
+    @Test
+    public void replacingCancelsThePreviousAlarms() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "tuesday", "wednesday"), onetime(2, 8, 0)));
+        this.backend.resetCounts();
+
+        this.core.replaceAlarms(alarms(onetime(4, 6, 0)));
+
+        assertArrayEquals(
+            new int[] { WakeupSchedulerCore.getRequestCode(4, WakeupAlarmRule.SLOT_ONETIME) },
+            this.backend.getRequestCodes()
+        );
+        // three slots of the daylist, the one time alarm and the pre-roll
+        assertEquals(5, this.backend.getCancelCount());
+        assertEquals(1, this.backend.getSetCount());
+    }
+
+    @Test
+    public void invalidListKeepsTheCurrentAlarms() throws Exception {
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+        this.backend.resetCounts();
+        int commits = this.store.getCommitCount();
+
+        try {
+            this.core.replaceAlarms(alarms(onetime(2, 7, 0), onetime(2, 8, 0)));
+            fail("duplicated ids accepted");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().contains("duplicated id 2"));
+        }
+
+        try {
+            this.core.replaceAlarms(alarms(new JSONObject().put("id", 3).put("time", new JSONObject().put("hour", 25))));
+            fail("invalid hour accepted");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().contains("invalid hour 25"));
+        }
+
+        assertEquals(1, this.store.size());
+        assertNotNull(this.store.find(1));
+        assertEquals(0, this.backend.getSetCount());
+        assertEquals(0, this.backend.getCancelCount());
+        assertEquals(commits, this.store.getCommitCount());
+    }
+
+    @Test
+    public void addingArmsOnlyTheNewAlarm() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+        this.listener.clear();
+
+        this.core.addAlarm(daylist(2, 6, 45, "saturday").put("extra", new JSONObject().put("label", "weekend")));
+
+        assertEquals(1, this.backend.getSetCount());
+        assertEquals(0, this.backend.getCancelCount());
+        this.assertArmed(2, 6, MONDAY + 5 * DAY_MS + 6 * HOUR_MS + 45 * MINUTE_MS);
+        assertEquals("{\"label\":\"weekend\"}", this.store.getExtra(2));
+
+        assertEquals(1, this.listener.scheduled.size());
+        JSONObject scheduled = this.listener.scheduled.get(0).getJSONObject(0);
+        assertEquals(2, scheduled.getInt("alarmId"));
+        assertEquals("daylist", scheduled.getString("type"));
+        assertEquals(MONDAY + 5 * DAY_MS + 6 * HOUR_MS + 45 * MINUTE_MS, scheduled.getLong("date"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addingAnExistingIdFails() throws Exception {
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+        this.core.addAlarm(onetime(1, 8, 0));
+    }
+
+    @Test
+    public void payloadOnlyUpdateDoesntTouchTheAlarms() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+
+        this.core.updateAlarm(daylist(1, 7, 0, "monday", "friday").put("extra", new JSONObject().put("label", "new")));
+
+        assertEquals(0, this.backend.getSetCount());
+        assertEquals(0, this.backend.getCancelCount());
+        assertEquals("{\"label\":\"new\"}", this.store.getExtra(1));
+    }
+
+    @Test
+    public void updatingTheDaysOnlyTouchesTheChangedSlots() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+
+        this.core.updateAlarm(daylist(1, 7, 0, "monday", "sunday"));
+
+        assertEquals(1, this.backend.getCancelCount());
+        assertEquals(1, this.backend.getSetCount());
+        assertNull(this.backend.get(WakeupSchedulerCore.getRequestCode(1, FRIDAY_SLOT)));
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 7 * HOUR_MS);
+        this.assertArmed(1, 0, MONDAY + 6 * DAY_MS + 7 * HOUR_MS);
+    }
+
+    @Test
+    public void updatingTheTimeRearmsEverySlot() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+
+        this.core.updateAlarm(daylist(1, 8, 15, "monday", "friday"));
+
+        assertEquals(2, this.backend.getSetCount());
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 8 * HOUR_MS + 15 * MINUTE_MS);
+        this.assertArmed(1, FRIDAY_SLOT, MONDAY + 4 * DAY_MS + 8 * HOUR_MS + 15 * MINUTE_MS);
+    }
+
+    @Test
+    public void removingCancelsItsSlots() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+
+        this.core.removeAlarm(1);
+        this.core.removeAlarm(42);
+
+        assertEquals(0, this.backend.size());
+        // both slots, the pre-roll was never armed
+        assertEquals(2, this.backend.getCancelCount());
+        assertTrue(this.store.getQueue().isEmpty());
+        assertFalse(this.backend.isRestoreOnBoot());
+    }
+
+    @Test
+    public void firedAlarmIsRearmedOnItsNextOccurrence() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday"), interval(2, 7, 0, 90)));
+        WakeupMemoryAlarmBackend.Armed monday = this.backend.get(WakeupSchedulerCore.getRequestCode(1, MONDAY_SLOT));
+        WakeupMemoryAlarmBackend.Armed interval = this.backend.get(WakeupSchedulerCore.getRequestCode(2, WakeupAlarmRule.SLOT_ONETIME));
+
+        this.fire(monday);
+        this.fire(interval);
+
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 7 * DAY_MS + 7 * HOUR_MS);
+        this.assertArmed(2, WakeupAlarmRule.SLOT_ONETIME, MONDAY + 7 * HOUR_MS + 90 * MINUTE_MS);
+    }
+
+    @Test
+    public void firedOnetimeAlarmIsNotRearmed() throws Exception {
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+
+        this.fire(this.backend.next());
+
+        assertEquals(0, this.backend.size());
+        assertTrue(this.store.getQueue().isEmpty());
+    }
+
+    @Test
+    public void singleSlotArmsOnlyTheHead() throws Exception {
+        this.store.setSchedulingMode(WakeupSchedulerCore.MODE_SINGLE_SLOT);
+        this.core.replaceAlarms(alarms(daylist(1, 9, 0, "monday"), onetime(2, 7, 0), onetime(3, 7, 0)));
+
+        assertArrayEquals(new int[] { WakeupSchedulerCore.ID_SINGLE_SLOT }, this.backend.getRequestCodes());
+        WakeupMemoryAlarmBackend.Armed head = this.backend.get(WakeupSchedulerCore.ID_SINGLE_SLOT);
+        assertEquals(MONDAY + 7 * HOUR_MS, head.time);
+        assertEquals(3, this.store.getQueue().size());
+
+        // both one time alarms are due on the same fire
+        List<Integer> due = this.fire(head);
+
+        assertEquals(Arrays.asList(head.alarmId == 2 ? 3 : 2), due);
+        head = this.backend.get(WakeupSchedulerCore.ID_SINGLE_SLOT);
+        assertEquals(1, head.alarmId);
+        assertEquals(MONDAY + 9 * HOUR_MS, head.time);
+    }
+
+    @Test
+    public void changingTheModeCancelsTheCurrentAlarms() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 9, 0, "monday", "friday"), onetime(2, 7, 0)));
+
+        this.core.setSchedulingMode(WakeupSchedulerCore.MODE_SINGLE_SLOT);
+
+        assertArrayEquals(new int[] { WakeupSchedulerCore.ID_SINGLE_SLOT }, this.backend.getRequestCodes());
+
+        this.core.setSchedulingMode(WakeupSchedulerCore.MODE_PER_ALARM);
+
+        assertEquals(3, this.backend.size());
+        assertNull(this.backend.get(WakeupSchedulerCore.ID_SINGLE_SLOT));
+    }
+
+    @Test
+    public void scheduledEventsAreSentOncePerOperation() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday"), onetime(2, 8, 0)));
+
+        assertEquals(1, this.listener.scheduled.size());
+        assertEquals(3, this.listener.scheduled.get(0).length());
+
+        this.listener.clear();
+        this.listener.setScheduledEvents(false);
+        this.core.addAlarm(onetime(3, 8, 0));
+
+        assertTrue(this.listener.scheduled.isEmpty());
+    }
+
+    @Test
+    public void cantArmWithoutExactAlarms() throws Exception {
+        this.backend.setExactAlarms(false);
+
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+
+        assertEquals(0, this.backend.size());
+        assertEquals(1, this.store.size());
+    }
+
+    @Test
+    public void restoreReportsTheMissedAlarmsAndArmsTheOthers() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday"), onetime(2, 9, 0), onetime(3, 23, 0)));
+
+        // off from 6:00 to 10:00
+        this.clock.setTime(MONDAY + 10 * HOUR_MS);
+        this.clock.reboot();
+        this.backend.reboot();
+        this.backend.resetCounts();
+
+        int[] keys = this.core.beginRestore();
+        int position = 0;
+
+        while (position < keys.length) {
+            position = this.core.restoreAlarmsChunk(keys, position, 0);
+        }
+
+        this.core.finishRestore(true);
+
+        assertEquals(1, this.listener.missed.size());
+        JSONArray missed = this.listener.missed.get(0);
+        assertEquals(2, missed.length());
+        assertEquals(1, missed.getJSONObject(0).getInt("alarmId"));
+        assertEquals(MONDAY + 7 * HOUR_MS, missed.getJSONObject(0).getLong("date"));
+        assertEquals(2, missed.getJSONObject(1).getInt("alarmId"));
+
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 7 * DAY_MS + 7 * HOUR_MS);
+        this.assertArmed(1, FRIDAY_SLOT, MONDAY + 4 * DAY_MS + 7 * HOUR_MS);
+        this.assertArmed(2, WakeupAlarmRule.SLOT_ONETIME, MONDAY + DAY_MS + 9 * HOUR_MS);
+        this.assertArmed(3, WakeupAlarmRule.SLOT_ONETIME, MONDAY + 23 * HOUR_MS);
+        assertEquals(4, this.backend.getSetCount());
+
+        // restored, nothing left to arm
+        this.backend.resetCounts();
+        this.core.reconcileAlarms();
+        assertEquals(0, this.backend.getSetCount());
+    }
+
+    @Test
+    public void restoreChunksStopOnTheBudget() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "tuesday", "wednesday")));
+        this.backend.reboot();
+
+        int[] keys = this.core.beginRestore();
+
+        // the elapsed time never moves, the budget is already over after the first key
+        assertEquals(3, keys.length);
+        assertEquals(1, this.core.restoreAlarmsChunk(keys, 0, 0));
+        assertEquals(1, this.backend.size());
+        assertEquals(2, this.core.restoreAlarmsChunk(keys, 1, 0));
+    }
+
+    @Test
+    public void reconcileOnlyRearmsWhatChanged() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday", "friday")));
+        this.backend.resetCounts();
+
+        this.core.reconcileAlarms();
+        assertEquals(0, this.backend.getSetCount());
+
+        // force stop, the system dropped the alarms
+        this.backend.reboot();
+        this.core.reconcileAlarms();
+        assertEquals(2, this.backend.size());
+
+        // a new zone moves every alarm to its local time
+        this.backend.resetCounts();
+        this.clock.setTimeZone(TimeZone.getTimeZone("GMT-03:00"));
+        this.core.reconcileAlarms();
+        assertEquals(2, this.backend.getSetCount());
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 10 * HOUR_MS);
+    }
+
+    @Test
+    public void reconcileRearmsTheStaleEntries() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday"), onetime(2, 9, 0)));
+        // the clock moved past the monday alarm before its fire was handled
+        this.clock.setTime(MONDAY + 8 * HOUR_MS);
+        this.backend.resetCounts();
+
+        this.core.reconcileAlarms();
+
+        assertEquals(1, this.backend.getSetCount());
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 7 * DAY_MS + 7 * HOUR_MS);
+        this.assertArmed(2, WakeupAlarmRule.SLOT_ONETIME, MONDAY + 9 * HOUR_MS);
+    }
+
+    @Test
+    public void reconcileRearmsAllWhenTheHeadIsGone() throws Exception {
+        this.core.replaceAlarms(alarms(daylist(1, 7, 0, "monday"), onetime(2, 9, 0)));
+        // the monday alarm fired, but its handling never ran
+        this.clock.setTime(MONDAY + 8 * HOUR_MS);
+        this.backend.fire(this.backend.get(WakeupSchedulerCore.getRequestCode(1, MONDAY_SLOT)));
+        this.backend.resetCounts();
+
+        this.core.reconcileAlarms();
+
+        assertEquals(2, this.backend.getSetCount());
+        this.assertArmed(1, MONDAY_SLOT, MONDAY + 7 * DAY_MS + 7 * HOUR_MS);
+    }
+
+    @Test
+    public void legacyAlarmsAreCancelledOnce() throws Exception {
+        this.store.setLegacyAlarmCount(3);
+        assertTrue(this.core.hasLegacyAlarms());
+
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+
+        // one time, 7 daylist, 7 rescheduled daylist and 3 sequential ids, the pre-roll on the first arm
+        assertEquals(1 + 7 + 7 + 3 + 1, this.backend.getCancelCount());
+        assertFalse(this.core.hasLegacyAlarms());
+
+        this.backend.resetCounts();
+        this.core.addAlarm(onetime(2, 8, 0));
+        assertEquals(0, this.backend.getCancelCount());
+    }
+
+    @Test
+    public void incrementalChangeArmsTheMigratedAlarms() throws Exception {
+        // migrated from the preferences, never armed by this version
+        this.store.put(WakeupAlarmRule.compile(0, 0, daylist(0, 7, 0, "monday"), MONDAY, this.clock.getTimeZone()), null);
+        this.store.setLegacyAlarmCount(1);
+
+        this.core.addAlarm(onetime(5, 9, 0));
+
+        this.assertArmed(0, MONDAY_SLOT, MONDAY + 7 * HOUR_MS);
+        this.assertArmed(5, WakeupAlarmRule.SLOT_ONETIME, MONDAY + 9 * HOUR_MS);
+        assertFalse(this.core.hasLegacyAlarms());
+    }
+
+    @Test
+    public void legacyCountForcesReconcileToRearm() throws Exception {
+        this.core.replaceAlarms(alarms(onetime(1, 7, 0)));
+        this.store.setLegacyAlarmCount(0);
+        this.backend.resetCounts();
+
+        this.core.reconcileAlarms();
+
+        assertEquals(1, this.backend.getSetCount());
+        assertFalse(this.core.hasLegacyAlarms());
+    }
+
+    @Test
+    public void prerollIsArmedAheadOfTheHead() throws Exception {
+        this.store.setPrerollSeconds(60);
+        this.core.replaceAlarms(alarms(onetime(1, 9, 0), onetime(2, 7, 0)));
+
+        WakeupMemoryAlarmBackend.Armed preroll = this.backend.get(WakeupSchedulerCore.ID_PREROLL);
+        assertTrue(preroll.preroll);
+        assertEquals(MONDAY + 7 * HOUR_MS - MINUTE_MS, preroll.time);
+
+        this.fire(this.backend.next());
+
+        assertEquals(MONDAY + 9 * HOUR_MS - MINUTE_MS, this.backend.get(WakeupSchedulerCore.ID_PREROLL).time);
+
+        this.fire(this.backend.next());
+
+        assertNull(this.backend.get(WakeupSchedulerCore.ID_PREROLL));
+    }
+
+    private List<Integer> fire(WakeupMemoryAlarmBackend.Armed alarm) {
+        this.clock.setTime(alarm.time);
+        this.backend.fire(alarm);
+
+        return this.core.onAlarmFired(alarm.alarmId, alarm.slot);
+    }
+
+    private void assertArmed(int alarmId, int slot, long time) {
+        WakeupMemoryAlarmBackend.Armed armed = this.backend.get(WakeupSchedulerCore.getRequestCode(alarmId, slot));
+
+        assertNotNull("alarm " + alarmId + " slot " + slot + " not armed", armed);
+        assertEquals(alarmId, armed.alarmId);
+        assertEquals(slot, armed.slot);
+        assertEquals(time, armed.time);
+    }
+
+    static JSONArray alarms(JSONObject... alarms) {
+        JSONArray result = new JSONArray();
+
+        for (JSONObject alarm : alarms) {
+            result.put(alarm);
+        }
+
+        return result;
+    }
+
+    static JSONObject onetime(int id, int hour, int minute) throws JSONException {
+        return new JSONObject()
+            .put("id", id)
+            .put("type", "onetime")
+            .put("time", new JSONObject().put("hour", hour).put("minute", minute));
+    }
+
+    static JSONObject daylist(int id, int hour, int minute, String... days) throws JSONException {
+        return new JSONObject()
+            .put("id", id)
+            .put("type", "daylist")
+            .put("time", new JSONObject().put("hour", hour).put("minute", minute))
+            .put("days", new JSONArray(Arrays.asList(days)));
+    }
+
+    static JSONObject interval(int id, int hour, int minute, int interval) throws JSONException {
+        return new JSONObject()
+            .put("id", id)
+            .put("type", "interval")
+            .put("time", new JSONObject().put("hour", hour).put("minute", minute))
+            .put("interval", interval);
+    }
+}
@@ -0,0 +1,171 @@
+package com.eltonfaust.wakeupplugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Generated schedules from 1 to 5000 alarms on both scheduling modes: the backend calls must grow only with the armed
+ * slots (per alarm) or stay constant (single slot), within a generous time budget
+ */
+@RunWith(Parameterized.class)
+public class WakeupSchedulerScaleTest {
+    // 2024-01-01T00:00:00Z
+    private static final long NOW = 1704067200000L;
+
+    // far above the expected times, only catches a return of the quadratic or per call costs
+    private static final long BUDGET_MS = 2000;
+
+    private final int alarmCount;
+
+    private final String mode;
+
+    private WakeupFakeClock clock;
+
+    private WakeupMemoryAlarmBackend backend;
+
+    private WakeupMemorySchedulerStore store;
+
+    private WakeupSchedulerCore core;
+
+    private JSONArray alarms;
+
+    public WakeupSchedulerScaleTest(int alarmCount, String mode) {
+        this.alarmCount = alarmCount;
+        this.mode = mode;
+    }
+
+    @Parameters(name = "{0} alarms, {1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+            { 1, WakeupSchedulerCore.MODE_PER_ALARM },
+            { 100, WakeupSchedulerCore.MODE_PER_ALARM },
+            { 5000, WakeupSchedulerCore.MODE_PER_ALARM },
+            { 1, WakeupSchedulerCore.MODE_SINGLE_SLOT },
+            { 100, WakeupSchedulerCore.MODE_SINGLE_SLOT },
+            { 5000, WakeupSchedulerCore.MODE_SINGLE_SLOT },
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        this.clock = new WakeupFakeClock(NOW, TimeZone.getTimeZone("America/New_York"));
+        this.backend = new WakeupMemoryAlarmBackend();
+        this.store = new WakeupMemorySchedulerStore();
+        this.core = new WakeupSchedulerCore(this.clock, this.backend, this.store, new WakeupRecordingListener());
+        this.core.setSchedulingMode(this.mode);
+        this.backend.resetCounts();
+        this.alarms = WakeupSimulation.buildAlarms(this.alarmCount, 42);
+    }
+
+    @Test
+    public void replacingCallsTheBackendOncePerSlot() throws Exception {
+        long startTime = System.nanoTime();
+        this.core.replaceAlarms(this.alarms);
+        long firstMs = (System.nanoTime() - startTime) / 1000000;
+
+        int slots = this.countSlots();
+
+        if (this.isSingleSlot()) {
+            // the head, the previous head and the pre-roll cancelled
+            assertEquals(1, this.backend.getSetCount());
+            assertEquals(2, this.backend.getCancelCount());
+            assertEquals(1, this.backend.size());
+        } else {
+            // nothing armed before, only the pre-roll cancelled
+            assertEquals(slots, this.backend.getSetCount());
+            assertEquals(1, this.backend.getCancelCount());
+            assertEquals(slots, this.backend.size());
+        }
+
+        assertEquals(slots, this.store.getQueue().size());
+
+        this.backend.resetCounts();
+        startTime = System.nanoTime();
+        this.core.replaceAlarms(this.alarms);
+        long secondMs = (System.nanoTime() - startTime) / 1000000;
+
+        if (this.isSingleSlot()) {
+            assertEquals(1, this.backend.getSetCount());
+            assertEquals(2, this.backend.getCancelCount());
+        } else {
+            // every armed slot cancelled and set again, with the pre-roll
+            assertEquals(slots, this.backend.getSetCount());
+            assertEquals(slots + 1, this.backend.getCancelCount());
+        }
+
+        assertTrue("first replace took " + firstMs + "ms", firstMs < BUDGET_MS);
+        assertTrue("second replace took " + secondMs + "ms", secondMs < BUDGET_MS);
+    }
+
+    @Test
+    public void fireRearmsOnlyTheFiredSlot() throws Exception {
+        this.core.replaceAlarms(this.alarms);
+        this.backend.resetCounts();
+
+        WakeupAlarmQueue queue = this.store.getQueue();
+        int key = queue.peekKey();
+        int alarmId = WakeupAlarmQueue.getAlarmId(key);
+        this.clock.setTime(queue.peekTime());
+
+        long startTime = System.nanoTime();
+        int others = this.core.onAlarmFired(alarmId, WakeupAlarmQueue.getSlot(key)).size();
+        long durationMs = (System.nanoTime() - startTime) / 1000000;
+
+        if (this.isSingleSlot()) {
+            // only the new head
+            assertEquals(1, this.backend.getSetCount());
+        } else {
+            // a one time alarm isn't rearmed, the others are due on their own request codes
+            boolean onetime = this.store.find(alarmId).type == WakeupAlarmRule.TYPE_ONETIME;
+            assertEquals(0, others);
+            assertEquals(onetime ? 0 : 1, this.backend.getSetCount());
+        }
+
+        assertEquals(0, this.backend.getCancelCount());
+        assertTrue("fire took " + durationMs + "ms", durationMs < BUDGET_MS);
+    }
+
+    @Test
+    public void removingCancelsOnlyItsSlots() throws Exception {
+        this.core.replaceAlarms(this.alarms);
+        this.backend.resetCounts();
+
+        WakeupAlarmRule removed = this.store.get(this.store.size() / 2);
+        this.core.removeAlarm(removed.id);
+
+        if (this.isSingleSlot()) {
+            assertTrue(this.backend.getCancelCount() <= 1);
+            assertTrue(this.backend.getSetCount() <= 1);
+        } else {
+            assertEquals(Integer.bitCount(removed.getSlots()), this.backend.getCancelCount());
+            assertEquals(0, this.backend.getSetCount());
+        }
+
+        assertEquals(this.alarmCount - 1, this.store.size());
+    }
+
+    private boolean isSingleSlot() {
+        return WakeupSchedulerCore.MODE_SINGLE_SLOT.equals(this.mode);
+    }
+
+    private int countSlots() {
+        int slots = 0;
+
+        for (WakeupAlarmRule rule : this.store.toArray()) {
+            slots += Integer.bitCount(rule.getSlots());
+        }
+
+        return slots;
+    }
+}
@@ -0,0 +1,31 @@
+package com.eltonfaust.wakeupplugin;
+
+/**
+ * Where the `WakeupSchedulerCore` registers the alarms, the AlarmManager on the device,
+ * each alarm is identified by its request code, setting one again replaces it
+ */
+public interface WakeupAlarmBackend {
+    /**
+     * Register the fire of an alarm slot at the given time
+     */
+    void set(int requestCode, long time, int alarmId, int slot);
+
+    /**
+     * Register the stream pre-roll at the given time, ahead of the alarm at `fireAt`
+     */
+    void setPreroll(int requestCode, long time, long fireAt);
+
+    void cancel(int requestCode);
+
+    /**
+     * Whether the alarm is still registered, the system drops them all on a force stop
+     */
+    boolean isArmed(int requestCode);
+
+    boolean canScheduleExactAlarms();
+
+    /**
+     * Whether the alarms must be restored after a boot
+     */
+    void setRestoreOnBoot(boolean enabled);
+}
@@ -0,0 +1,310 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persisted priority queue with the next fire time of every armed alarm slot, the soonest one on the head
+ *
+ * The entries are identified by a key derived from the alarm id and the slot (see `getKey`),
+ * the heap is saved as is (magic, version, count and the key/time pairs), so loading doesn't need to rebuild it,
+ * a queue without a file is only kept in memory
+ */
+public class WakeupAlarmQueue {
+    public static final String FILE_NAME = "wakeup-queue.bin";
+
+    private static final int MAGIC = 0x57414b51;
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    private int[] keys = new int[16];
+
+    private long[] times = new long[16];
+
+    private int size = 0;
+
+    // position of each key on the heap
+    private final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+
+    public WakeupAlarmQueue(File file) {
+        this.file = file;
+    }
+
+    public static int getKey(int alarmId, int slot) {
+        return alarmId * WakeupAlarmRule.SLOT_COUNT + slot;
+    }
+
+    public static int getAlarmId(int key) {
+        return key / WakeupAlarmRule.SLOT_COUNT;
+    }
+
+    public static int getSlot(int key) {
+        return key % WakeupAlarmRule.SLOT_COUNT;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public synchronized int peekKey() {
+        return this.size == 0 ? -1 : this.keys[0];
+    }
+
+    public synchronized long peekTime() {
+        return this.size == 0 ? -1 : this.times[0];
+    }
+
+    /**
+     * Fire time of the given key, or -1 if it's not on the queue
+     */
+    public synchronized long getTime(int key) {
+        Integer position = this.positions.get(key);
+        return position == null ? -1 : this.times[position];
+    }
+
+    /**
+     * All keys, from the soonest to the latest
+     */
+    public synchronized int[] getKeysByTime() {
+        Integer[] positions = new Integer[this.size];
+
+        for (int i = 0; i < this.size; i++) {
+            positions[i] = i;
+        }
+
+        // same order used on the heap
+        Arrays.sort(positions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return WakeupAlarmQueue.this.before(a, b) ? -1 : (WakeupAlarmQueue.this.before(b, a) ? 1 : 0);
+            }
+        });
+
+        int[] result = new int[this.size];
+
+        for (int i = 0; i < this.size; i++) {
+            result[i] = this.keys[positions[i]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Remove the head and return its key
+     */
+    public synchronized int poll() {
+        if (this.size == 0) {
+            return -1;
+        }
+
+        int key = this.keys[0];
+        this.removeAt(0);
+
+        return key;
+    }
+
+    /**
+     * Add a new entry, or move an existing one to the new fire time
+     */
+    public synchronized void schedule(int key, long time) {
+        Integer position = this.positions.get(key);
+
+        if (position != null) {
+            long previous = this.times[position];
+            this.times[position] = time;
+
+            if (time < previous) {
+                this.siftUp(position);
+            } else {
+                this.siftDown(position);
+            }
+
+            return;
+        }
+
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.times = Arrays.copyOf(this.times, this.size * 2);
+        }
+
+        this.keys[this.size] = key;
+        this.times[this.size] = time;
+        this.positions.put(key, this.size);
+        this.size++;
+        this.siftUp(this.size - 1);
+    }
+
+    public synchronized boolean remove(int key) {
+        Integer position = this.positions.get(key);
+
+        if (position == null) {
+            return false;
+        }
+
+        this.removeAt(position);
+
+        return true;
+    }
+
+    public synchronized void clear() {
+        this.size = 0;
+        this.positions.clear();
+    }
+
+    public synchronized void commit() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+
+        File tmp = new File(this.file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(this.size);
+
+            for (int i = 0; i < this.size; i++) {
+                out.writeInt(this.keys[i]);
+                out.writeLong(this.times[i]);
+            }
+
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(this.file)) {
+            tmp.delete();
+            throw new IOException("can't replace the alarm queue file");
+        }
+    }
+
+    /**
+     * Replace the entries with the ones saved on the file
+     */
+    public synchronized void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid alarm queue file");
+            }
+
+            int version = in.readShort();
+
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported alarm queue version " + version);
+            }
+
+            int count = in.readInt();
+
+            if (count < 0) {
+                throw new IOException("invalid alarm queue header");
+            }
+
+            int capacity = Math.max(16, count);
+            this.keys = new int[capacity];
+            this.times = new long[capacity];
+            this.positions.clear();
+
+            for (int i = 0; i < count; i++) {
+                this.keys[i] = in.readInt();
+                this.times[i] = in.readLong();
+                this.positions.put(this.keys[i], i);
+            }
+
+            this.size = count;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void removeAt(int position) {
+        this.positions.remove(this.keys[position]);
+        this.size--;
+
+        if (position == this.size) {
+            return;
+        }
+
+        this.keys[position] = this.keys[this.size];
+        this.times[position] = this.times[this.size];
+        this.positions.put(this.keys[position], position);
+
+        this.siftDown(position);
+        this.siftUp(position);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+
+            if (!this.before(position, parent)) {
+                break;
+            }
+
+            this.swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int left = 2 * position + 1;
+
+            if (left >= this.size) {
+                break;
+            }
+
+            int smallest = left;
+            int right = left + 1;
+
+            if (right < this.size && this.before(right, left)) {
+                smallest = right;
+            }
+
+            if (!this.before(smallest, position)) {
+                break;
+            }
+
+            this.swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    // ties are ordered by key, so alarms at the same time always come out in the same order
+    private boolean before(int a, int b) {
+        return this.times[a] < this.times[b] || (this.times[a] == this.times[b] && this.keys[a] < this.keys[b]);
+    }
+
+    private void swap(int a, int b) {
+        int key = this.keys[a];
+        long time = this.times[a];
+
+        this.keys[a] = this.keys[b];
+        this.times[a] = this.times[b];
+        this.keys[b] = key;
+        this.times[b] = time;
+
+        this.positions.put(this.keys[a], a);
+        this.positions.put(this.keys[b], b);
+    }
+}
@@ -0,0 +1,308 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Immutable alarm schedule, compiled once from the alarm json
+ *
+ * The next occurrence is computed directly over epoch millis with the offsets of the given time zone,
+ * without allocating calendars or reading the json again
+ */
+public final class WakeupAlarmRule {
+    public static final int TYPE_ONETIME = 0;
+    public static final int TYPE_DAYLIST = 1;
+    public static final int TYPE_INTERVAL = 2;
+
+    // arming slots of an alarm, one per week day (0 .. 6) and one for the one time and interval alarms
+    public static final int SLOT_ONETIME = 7;
+    public static final int SLOT_COUNT = 8;
+
+    // highest alarm id, keeps the derived request codes inside the int range
+    public static final int MAX_ID = 0xFFFFFF;
+
+    public static final long NO_END = Long.MAX_VALUE;
+
+    private static final long MINUTE_MS = 60 * 1000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    public static final Map<String, Integer> daysOfWeek = new HashMap<String, Integer>() {
+        private static final long serialVersionUID = 1L;
+        {
+            put("sunday", 0);
+            put("monday", 1);
+            put("tuesday", 2);
+            put("wednesday", 3);
+            put("thursday", 4);
+            put("friday", 5);
+            put("saturday", 6);
+        }
+    };
+
+    public final int id;
+    public final int type;
+    public final int hour;
+    public final int minute;
+    public final int days;
+    // minutes between the fires of an interval alarm
+    public final int interval;
+    // first fire of an interval alarm
+    public final long start;
+    // no fire after this time
+    public final long until;
+
+    public WakeupAlarmRule(int id, int type, int hour, int minute, int days, int interval, long start, long until) {
+        this.id = id;
+        this.type = type;
+        this.hour = hour;
+        this.minute = minute;
+        this.days = days;
+        this.interval = interval;
+        this.start = start;
+        this.until = until;
+    }
+
+    /**
+     * Compile the alarm json received from the app, using its `id` if present or the given default id,
+     * any invalid value is rejected with the alarm index on the message
+     */
+    public static WakeupAlarmRule compile(int index, int defaultId, JSONObject alarm, long now, TimeZone zone) throws JSONException {
+        int id = alarm.has("id") ? alarm.getInt("id") : defaultId;
+
+        if (id < 0 || id > MAX_ID) {
+            throw invalid(index, "id out of range: " + id);
+        }
+
+        int type = TYPE_ONETIME;
+
+        if (alarm.has("type")) {
+            String typeName = alarm.getString("type");
+
+            if (typeName.equals("daylist")) {
+                type = TYPE_DAYLIST;
+            } else if (typeName.equals("interval")) {
+                type = TYPE_INTERVAL;
+            } else if (!typeName.equals("onetime")) {
+                throw invalid(index, "unknown type '" + typeName + "'");
+            }
+        }
+
+        if (!alarm.has("time")) {
+            throw invalid(index, "missing time");
+        }
+
+        JSONObject time = alarm.getJSONObject("time");
+
+        if (!time.has("hour")) {
+            throw invalid(index, "missing time hour");
+        }
+
+        int hour = time.getInt("hour");
+        int minute = time.has("minute") ? time.getInt("minute") : 0;
+
+        if (hour < 0 || hour > 23) {
+            throw invalid(index, "invalid hour " + hour);
+        }
+
+        if (minute < 0 || minute > 59) {
+            throw invalid(index, "invalid minute " + minute);
+        }
+
+        int days = 0;
+
+        if (type == TYPE_DAYLIST) {
+            JSONArray dayNames = alarm.getJSONArray("days");
+
+            for (int i = 0; i < dayNames.length(); i++) {
+                Integer day = daysOfWeek.get(dayNames.getString(i));
+
+                if (day == null) {
+                    throw invalid(index, "unknown day '" + dayNames.getString(i) + "'");
+                }
+
+                days |= 1 << day;
+            }
+
+            if (days == 0) {
+                throw invalid(index, "empty day list");
+            }
+        }
+
+        int interval = 0;
+        long start = 0;
+
+        if (type == TYPE_INTERVAL) {
+            interval = alarm.optInt("interval", 0);
+
+            if (interval <= 0) {
+                throw invalid(index, "invalid interval " + alarm.opt("interval"));
+            }
+
+            // anchor the repetitions on the first fire, so they don't drift each time the alarm is armed
+            if (alarm.has("start")) {
+                start = alarm.getLong("start");
+            } else {
+                start = new WakeupAlarmRule(id, TYPE_ONETIME, hour, minute, 0, 0, 0, NO_END).nextOccurrence(SLOT_ONETIME, now, zone);
+            }
+        }
+
+        long until = NO_END;
+
+        if (alarm.has("until")) {
+            until = alarm.getLong("until");
+        }
+
+        return new WakeupAlarmRule(id, type, hour, minute, days, interval, start, until);
+    }
+
+    /**
+     * The `extra` json of the alarm, kept as is beside the rule
+     */
+    public static String parseExtra(JSONObject alarm) throws JSONException {
+        return alarm.has("extra") ? alarm.getJSONObject("extra").toString() : null;
+    }
+
+    public boolean hasDay(int day) {
+        return (this.days & (1 << day)) != 0;
+    }
+
+    public String getTypeName() {
+        if (this.type == TYPE_DAYLIST) {
+            return "daylist";
+        } else if (this.type == TYPE_INTERVAL) {
+            return "interval";
+        }
+
+        return "onetime";
+    }
+
+    /**
+     * Bitmask of the slots used by this alarm
+     */
+    public int getSlots() {
+        return this.type == TYPE_DAYLIST ? this.days : 1 << SLOT_ONETIME;
+    }
+
+    /**
+     * Whether both rules fire at the same times, ignoring the days of a daylist alarm
+     */
+    public boolean hasSameSchedule(WakeupAlarmRule other) {
+        return this.type == other.type
+            && this.hour == other.hour
+            && this.minute == other.minute
+            && this.interval == other.interval
+            && this.start == other.start
+            && this.until == other.until;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof WakeupAlarmRule)) {
+            return false;
+        }
+
+        WakeupAlarmRule rule = (WakeupAlarmRule) other;
+
+        return this.id == rule.id && this.days == rule.days && this.hasSameSchedule(rule);
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = this.id;
+        hash = 31 * hash + this.type;
+        hash = 31 * hash + this.hour;
+        hash = 31 * hash + this.minute;
+        hash = 31 * hash + this.days;
+        hash = 31 * hash + this.interval;
+        hash = 31 * hash + this.start;
+        hash = 31 * hash + this.until;
+
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Next fire of the slot at or after `now`, or -1 if there's none
+     */
+    public long nextOccurrence(int slot, long now, TimeZone zone) {
+        long next;
+
+        if (this.type == TYPE_INTERVAL) {
+            long intervalMs = this.interval * MINUTE_MS;
+            next = this.start;
+
+            if (next < now) {
+                next += ((now - next + intervalMs - 1) / intervalMs) * intervalMs;
+            }
+        } else {
+            long localNow = now + zone.getOffset(now);
+            long day = floorDiv(localNow, DAY_MS);
+            long timeOfDay = this.hour * HOUR_MS + this.minute * MINUTE_MS;
+
+            if (this.type == TYPE_DAYLIST) {
+                if (!this.hasDay(slot)) {
+                    return -1;
+                }
+
+                // the epoch day 0 was a thursday
+                int dayOfWeek = (int) floorMod(day + 4, 7);
+                day += floorMod(slot - dayOfWeek, 7);
+            }
+
+            next = toUtc(day * DAY_MS + timeOfDay, zone);
+
+            if (next < now) {
+                next = toUtc((day + (this.type == TYPE_DAYLIST ? 7 : 1)) * DAY_MS + timeOfDay, zone);
+            }
+        }
+
+        return next > this.until ? -1 : next;
+    }
+
+    /**
+     * Convert a local time to epoch millis; a time skipped by a DST gap is moved forward by the gap length,
+     * a repeated time resolves to its first occurrence
+     */
+    static long toUtc(long localMillis, TimeZone zone) {
+        long guess = localMillis - zone.getRawOffset();
+        // offsets before and after any transition near this time
+        int offsetBefore = zone.getOffset(guess - 12 * HOUR_MS);
+        int offsetAfter = zone.getOffset(guess + 12 * HOUR_MS);
+
+        if (offsetBefore == offsetAfter) {
+            return localMillis - offsetBefore;
+        }
+
+        long early = localMillis - Math.max(offsetBefore, offsetAfter);
+        long late = localMillis - Math.min(offsetBefore, offsetAfter);
+
+        if (zone.getOffset(early) == localMillis - early) {
+            return early;
+        }
+
+        if (zone.getOffset(late) == localMillis - late) {
+            return late;
+        }
+
+        // gap, use the offset from before the transition
+        return localMillis - offsetBefore;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long r = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? r - 1 : r;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    private static JSONException invalid(int index, String message) {
+        return new JSONException("alarm #" + index + ": " + message);
+    }
+}
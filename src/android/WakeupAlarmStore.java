@@ -0,0 +1,469 @@
+package com.eltonfaust.wakeupplugin;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Persistent alarm store, replaces the json string previously saved on the "alarms" preference
+ *
+ * The store is a versioned binary file, with a fixed-size record per alarm sorted by the alarm id
+ * (the record table is the id index) followed by the variable-size payloads (the alarm `extra` json):
+ *
+ *   header:   magic (int), version (short), record size (short), record count (int)
+ *   records:  id (int), type (byte), hour (byte), minute (byte), days bitmask (byte),
+ *             interval (int), start (long), until (long), payload offset (int), payload length (int)
+ *   payloads: utf-8 bytes
+ *
+ * Only the record table is loaded, payloads are read on demand, changes are kept in memory
+ * until `commit`, that rewrites the file to a temporary one and renames it over the current
+ */
+public class WakeupAlarmStore {
+    private static final String LOG_TAG = "WakeupAlarmStore";
+
+    private static final String FILE_NAME = "wakeup-alarms.bin";
+    private static final String LEGACY_PREF_KEY = "alarms";
+
+    private static final int MAGIC = 0x57414b45;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 36;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // chars of payloads kept in memory after read from the file
+    private static final int PAYLOAD_CACHE_SIZE = 64 * 1024;
+
+    private static WakeupAlarmStore instance;
+
+    private final File file;
+
+    // rules sorted by id, with the location of its payload on the committed file
+    private WakeupAlarmRule[] rules = new WakeupAlarmRule[0];
+
+    private int[] payloadOffsets = new int[0];
+
+    private int[] payloadLengths = new int[0];
+
+    private int size = 0;
+
+    // payloads changed since the last commit, by alarm id
+    private final Map<Integer, byte[]> pendingPayloads = new HashMap<Integer, byte[]>();
+
+    // committed payloads already read, so repeated fires of an alarm don't hit the disk
+    private final LruCache<Integer, String> payloadCache = new LruCache<Integer, String>(PAYLOAD_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Integer id, String payload) {
+            return payload.length();
+        }
+    };
+
+    private WakeupAlarmStore(File file) {
+        this.file = file;
+    }
+
+    public static synchronized WakeupAlarmStore getInstance(Context context) {
+        if (instance == null) {
+            WakeupAlarmStore store = new WakeupAlarmStore(new File(context.getFilesDir(), FILE_NAME));
+
+            if (store.file.exists()) {
+                try {
+                    store.load();
+                } catch (IOException e) {
+                    log("Can't read the alarm store, discarding it: " + e.getMessage());
+                    store.clear();
+                }
+            }
+
+            if (!store.file.exists() || store.size == 0) {
+                store.migrateFromPrefs(context);
+            }
+
+            instance = store;
+        }
+
+        return instance;
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized WakeupAlarmRule get(int position) {
+        return this.rules[position];
+    }
+
+    public synchronized WakeupAlarmRule[] toArray() {
+        return Arrays.copyOf(this.rules, this.size);
+    }
+
+    public synchronized WakeupAlarmRule find(int id) {
+        int position = this.indexOf(id);
+        return position >= 0 ? this.rules[position] : null;
+    }
+
+    public synchronized String getExtra(int id) {
+        byte[] pending = this.pendingPayloads.get(id);
+
+        if (pending != null) {
+            return pending.length == 0 ? null : new String(pending, UTF_8);
+        }
+
+        int position = this.indexOf(id);
+
+        if (position < 0 || this.payloadLengths[position] == 0) {
+            return null;
+        }
+
+        String cached = this.payloadCache.get(id);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        try {
+            RandomAccessFile source = new RandomAccessFile(this.file, "r");
+
+            try {
+                String payload = new String(readPayload(source, this.payloadOffsets[position], this.payloadLengths[position]), UTF_8);
+                this.payloadCache.put(id, payload);
+
+                return payload;
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            log("Can't read payload of alarm " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void put(WakeupAlarmRule rule, String extra) {
+        int position = this.indexOf(rule.id);
+
+        if (position >= 0) {
+            this.rules[position] = rule;
+        } else {
+            position = -(position + 1);
+
+            if (this.size == this.rules.length) {
+                int capacity = Math.max(8, this.size * 2);
+                this.rules = Arrays.copyOf(this.rules, capacity);
+                this.payloadOffsets = Arrays.copyOf(this.payloadOffsets, capacity);
+                this.payloadLengths = Arrays.copyOf(this.payloadLengths, capacity);
+            }
+
+            System.arraycopy(this.rules, position, this.rules, position + 1, this.size - position);
+            System.arraycopy(this.payloadOffsets, position, this.payloadOffsets, position + 1, this.size - position);
+            System.arraycopy(this.payloadLengths, position, this.payloadLengths, position + 1, this.size - position);
+            this.rules[position] = rule;
+            this.size++;
+        }
+
+        this.payloadOffsets[position] = -1;
+        this.payloadLengths[position] = 0;
+        this.pendingPayloads.put(rule.id, extra == null ? new byte[0] : extra.getBytes(UTF_8));
+        this.payloadCache.remove(rule.id);
+    }
+
+    public synchronized boolean remove(int id) {
+        int position = this.indexOf(id);
+
+        if (position < 0) {
+            return false;
+        }
+
+        System.arraycopy(this.rules, position + 1, this.rules, position, this.size - position - 1);
+        System.arraycopy(this.payloadOffsets, position + 1, this.payloadOffsets, position, this.size - position - 1);
+        System.arraycopy(this.payloadLengths, position + 1, this.payloadLengths, position, this.size - position - 1);
+        this.size--;
+        this.rules[this.size] = null;
+        this.pendingPayloads.remove(id);
+        this.payloadCache.remove(id);
+
+        return true;
+    }
+
+    public synchronized void clear() {
+        this.rules = new WakeupAlarmRule[0];
+        this.payloadOffsets = new int[0];
+        this.payloadLengths = new int[0];
+        this.size = 0;
+        this.pendingPayloads.clear();
+        this.payloadCache.evictAll();
+    }
+
+    /**
+     * Replace all alarms with the list received from the app, alarms without an `id` use its position on the list
+     */
+    public synchronized void replaceAll(JSONArray alarms, long now, TimeZone zone) throws JSONException {
+        // compile everything before changing the current state, so an invalid alarm keeps the store untouched
+        WakeupAlarmRule[] compiled = new WakeupAlarmRule[alarms.length()];
+        String[] extras = new String[alarms.length()];
+        Set<Integer> ids = new HashSet<Integer>();
+
+        for (int i = 0; i < alarms.length(); i++) {
+            JSONObject alarm = alarms.getJSONObject(i);
+            compiled[i] = WakeupAlarmRule.compile(i, i, alarm, now, zone);
+            extras[i] = WakeupAlarmRule.parseExtra(alarm);
+
+            if (!ids.add(compiled[i].id)) {
+                throw new JSONException("alarm #" + i + ": duplicated id " + compiled[i].id);
+            }
+        }
+
+        this.clear();
+
+        for (int i = 0; i < compiled.length; i++) {
+            this.put(compiled[i], extras[i]);
+        }
+    }
+
+    /**
+     * Write the current state to a temporary file and rename it over the store file
+     */
+    public synchronized void commit() throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        RandomAccessFile source = this.file.exists() ? new RandomAccessFile(this.file, "r") : null;
+        int[] committedOffsets = new int[this.size];
+        int[] committedLengths = new int[this.size];
+
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+            try {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeShort(RECORD_SIZE);
+                out.writeInt(this.size);
+
+                int payloadOffset = HEADER_SIZE + this.size * RECORD_SIZE;
+
+                for (int i = 0; i < this.size; i++) {
+                    WakeupAlarmRule rule = this.rules[i];
+                    byte[] pending = this.pendingPayloads.get(rule.id);
+                    int payloadLength = pending != null ? pending.length : this.payloadLengths[i];
+
+                    out.writeInt(rule.id);
+                    out.writeByte(rule.type);
+                    out.writeByte(rule.hour);
+                    out.writeByte(rule.minute);
+                    out.writeByte(rule.days);
+                    out.writeInt(rule.interval);
+                    out.writeLong(rule.start);
+                    out.writeLong(rule.until);
+                    out.writeInt(payloadOffset);
+                    out.writeInt(payloadLength);
+
+                    committedOffsets[i] = payloadOffset;
+                    committedLengths[i] = payloadLength;
+                    payloadOffset += payloadLength;
+                }
+
+                for (int i = 0; i < this.size; i++) {
+                    byte[] pending = this.pendingPayloads.get(this.rules[i].id);
+
+                    if (pending != null) {
+                        out.write(pending);
+                    } else if (this.payloadLengths[i] > 0 && source != null) {
+                        out.write(readPayload(source, this.payloadOffsets[i], this.payloadLengths[i]));
+                    }
+                }
+
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        if (!tmp.renameTo(this.file)) {
+            tmp.delete();
+            throw new IOException("can't replace the alarm store file");
+        }
+
+        this.rules = Arrays.copyOf(this.rules, this.size);
+        this.payloadOffsets = committedOffsets;
+        this.payloadLengths = committedLengths;
+        this.pendingPayloads.clear();
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid alarm store file");
+            }
+
+            int version = in.readShort();
+
+            if (version != VERSION) {
+                throw new IOException("unsupported alarm store version " + version);
+            }
+
+            int recordSize = in.readUnsignedShort();
+            int count = in.readInt();
+
+            if (recordSize < RECORD_SIZE || count < 0) {
+                throw new IOException("invalid alarm store header");
+            }
+
+            byte[] table = new byte[count * recordSize];
+            in.readFully(table);
+
+            ByteBuffer buffer = ByteBuffer.wrap(table);
+            WakeupAlarmRule[] loaded = new WakeupAlarmRule[count];
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                buffer.position(i * recordSize);
+
+                int id = buffer.getInt();
+                int type = buffer.get();
+                int hour = buffer.get();
+                int minute = buffer.get();
+                int days = buffer.get() & 0xff;
+                int interval = buffer.getInt();
+                long start = buffer.getLong();
+                long until = buffer.getLong();
+
+                loaded[i] = new WakeupAlarmRule(id, type, hour, minute, days, interval, start, until);
+                offsets[i] = buffer.getInt();
+                lengths[i] = buffer.getInt();
+            }
+
+            this.rules = loaded;
+            this.payloadOffsets = offsets;
+            this.payloadLengths = lengths;
+            this.size = count;
+            this.pendingPayloads.clear();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Move the alarms saved by previous versions to the store, an alarm that no longer compiles is skipped,
+     * its index is reported as the `migration_skipped` diagnostics value and on an error event
+     */
+    private void migrateFromPrefs(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String serializedAlarms = prefs.getString(LEGACY_PREF_KEY, null);
+
+        if (serializedAlarms == null) {
+            return;
+        }
+
+        JSONArray alarms;
+
+        try {
+            alarms = new JSONArray(serializedAlarms);
+        } catch (JSONException e) {
+            log("Can't migrate the alarms from preferences: " + e.getMessage());
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        TimeZone zone = TimeZone.getDefault();
+        JSONArray skipped = new JSONArray();
+
+        this.clear();
+
+        for (int i = 0; i < alarms.length(); i++) {
+            try {
+                JSONObject alarm = alarms.getJSONObject(i);
+                WakeupAlarmRule rule = WakeupAlarmRule.compile(i, i, alarm, now, zone);
+
+                if (this.indexOf(rule.id) >= 0) {
+                    throw new JSONException("alarm #" + i + ": duplicated id " + rule.id);
+                }
+
+                this.put(rule, WakeupAlarmRule.parseExtra(alarm));
+            } catch (JSONException e) {
+                log("Skipping legacy alarm: " + e.getMessage());
+                skipped.put(i);
+            }
+        }
+
+        try {
+            this.commit();
+        } catch (IOException e) {
+            // the legacy value is kept, the migration runs again on the next start
+            log("Can't migrate the alarms from preferences: " + e.getMessage());
+            this.clear();
+            return;
+        }
+
+        // only drop the legacy value once the store is safely written
+        prefs.edit().remove(LEGACY_PREF_KEY).apply();
+        log("Migrated " + this.size + " alarms from preferences");
+
+        if (skipped.length() > 0) {
+            WakeupDiagnostics.recordValue("migration_skipped", skipped.toString());
+            WakeupDiagnostics.save(context);
+            WakeupPlugin.sendErrorResult("Alarms " + skipped.toString() + " can't be migrated from the previous version and were dropped");
+        }
+    }
+
+    private int indexOf(int id) {
+        int low = 0;
+        int high = this.size - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = this.rules[middle].id;
+
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    private static byte[] readPayload(RandomAccessFile source, int offset, int length) throws IOException {
+        byte[] payload = new byte[length];
+        source.seek(offset);
+        source.readFully(payload);
+        return payload;
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
@@ -1,373 +1,328 @@
 package com.eltonfaust.wakeupplugin;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Build;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.util.Arrays;
-import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
 
 // credits to: https://stackoverflow.com/a/58516863/3337038 and https://github.com/judemanutd/AutoStarter
 
+/**
+ * Finds the manufacturer screen that allows the app to auto start
+ *
+ * The candidates come from a table (the `wakeup_autostart` raw resource, or the one set by the app with `setTable`),
+ * a list of { brands, candidates } where each candidate has a `package` and `component`, or an `action`;
+ * the first candidate of the device brand that resolves to an exported activity wins,
+ * and is cached until a system or app update, a package change, or a new table
+ */
 public class WakeupAutoStartHelper {
     private static final String LOG_TAG = "WakeupAutoStartHelper";
-    private static final String PREF_KEY_APP_AUTO_START = "app-auto-start";
 
-    /***
-     * Xiaomi
-     */
-    private static final String BRAND_XIAOMI = "xiaomi";
-    private static final String BRAND_XIAOMI_POCO = "poco";
-    private static final String BRAND_XIAOMI_REDMI = "redmi";
-    private static final String PACKAGE_XIAOMI_MAIN = "com.miui.securitycenter";
-    private static final String PACKAGE_XIAOMI_COMPONENT = "com.miui.permcenter.autostart.AutoStartManagementActivity";
-
-    /***
-     * Letv
-     */
-    private static final String BRAND_LETV = "letv";
-    private static final String PACKAGE_LETV_MAIN = "com.letv.android.letvsafe";
-    private static final String PACKAGE_LETV_COMPONENT = "com.letv.android.letvsafe.AutobootManageActivity";
+    private static final String TABLE_RESOURCE = "wakeup_autostart";
+    private static final String PREF_KEY_TABLE = "alarms_autostart_table";
 
-    /***
-     * ASUS ROG
-     */
-    private static final String BRAND_ASUS = "asus";
-    private static final String PACKAGE_ASUS_MAIN = "com.asus.mobilemanager";
-    private static final String PACKAGE_ASUS_COMPONENT = "com.asus.mobilemanager.powersaver.PowerSaverSettings";
+    // persisted winner, valid while the system build, the app version and the table don't change
+    private static final String PREFS_NAME = "wakeup_autostart";
+    private static final String PREF_KEY_STAMP = "stamp";
+    private static final String PREF_KEY_WINNER = "winner";
 
-    /***
-     * Honor
-     */
-    private static final String BRAND_HONOR = "honor";
-    private static final String PACKAGE_HONOR_MAIN = "com.huawei.systemmanager";
-    private static final String PACKAGE_HONOR_COMPONENT = "com.huawei.systemmanager.optimize.process.ProtectActivity";
+    private static WakeupAutoStartHelper instance;
 
-    /**
-     * Oppo
-     */
-    private static final String BRAND_OPPO = "oppo";
-    private static final String PACKAGE_OPPO_MAIN = "com.coloros.safecenter";
-    private static final String PACKAGE_OPPO_FALLBACK = "com.oppo.safe";
-    private static final String PACKAGE_OPPO_COMPONENT = "com.coloros.safecenter.permission.startup.StartupAppListActivity";
-    private static final String PACKAGE_OPPO_COMPONENT_FALLBACK = "com.oppo.safe.permission.startup.StartupAppListActivity";
-    private static final String PACKAGE_OPPO_COMPONENT_FALLBACK_A = "com.coloros.safecenter.startupapp.StartupAppListActivity";
+    // whether the winner was already resolved
+    private boolean resolved = false;
 
-    /**
-     * Vivo
-     */
-    private static final String BRAND_VIVO = "vivo";
-    private static final String PACKAGE_VIVO_MAIN = "com.iqoo.secure";
-    private static final String PACKAGE_VIVO_FALLBACK = "com.vivo.perm;issionmanager";
-    private static final String PACKAGE_VIVO_COMPONENT = "com.iqoo.secure.ui.phoneoptimize.AddWhiteListActivity";
-    private static final String PACKAGE_VIVO_COMPONENT_FALLBACK = "com.vivo.permissionmanager.activity.BgStartUpManagerActivity";
-    private static final String PACKAGE_VIVO_COMPONENT_FALLBACK_A = "com.iqoo.secure.ui.phoneoptimize.BgStartUpManager";
+    // the winning candidate, null if none resolves on this device
+    private JSONObject winner = null;
 
-    /**
-     * Nokia
-     */
-    private static final String BRAND_NOKIA = "nokia";
-    private static final String PACKAGE_NOKIA_MAIN = "com.evenwell.powersaving.g3";
-    private static final String PACKAGE_NOKIA_COMPONENT = "com.evenwell.powersaving.g3.exception.PowerSaverExceptionActivity";
-
-    /***
-     * Samsung
-     */
-    private static final String BRAND_SAMSUNG = "samsung";
-    private static final String PACKAGE_SAMSUNG_MAIN = "com.samsung.android.lool";
-    private static final String PACKAGE_SAMSUNG_COMPONENT = "com.samsung.android.sm.ui.battery.BatteryActivity";
-    private static final String PACKAGE_SAMSUNG_COMPONENT_2 = "com.samsung.android.sm.battery.ui.BatteryActivity";
-    private static final String PACKAGE_SAMSUNG_COMPONENT_3 = "com.samsung.android.sm.battery.ui.usage.CheckableAppListActivity";
-
-    /***
-     * One plus
-     */
-    private static final String BRAND_ONE_PLUS = "oneplus";
-    private static final String PACKAGE_ONE_PLUS_MAIN = "com.oneplus.security";
-    private static final String PACKAGE_ONE_PLUS_COMPONENT = "com.oneplus.security.chainlaunch.view.ChainLaunchAppListActivity";
-    private static final String PACKAGE_ONE_PLUS_ACTION = "com.android.settings.action.BACKGROUND_OPTIMIZE";
+    private boolean receiverRegistered = false;
 
     private WakeupAutoStartHelper() {
     }
 
-    public static WakeupAutoStartHelper getInstance() {
-        return new WakeupAutoStartHelper();
+    public static synchronized WakeupAutoStartHelper getInstance() {
+        if (instance == null) {
+            instance = new WakeupAutoStartHelper();
+        }
+
+        return instance;
     }
 
     public boolean canOpenPreferences(Context context) {
-        return this.autoStart(context, false);
+        return this.getWinner(context) != null;
     }
 
     public boolean openAutoStartPreferences(Context context) {
-        String brandName = Build.BRAND.toLowerCase();
+        String brandName = Build.BRAND.toLowerCase(Locale.ROOT);
         log("Opening preferences for: ".concat(brandName));
 
-        return this.autoStart(context);
-    }
-
-    private boolean autoStart(final Context context) {
-        return this.autoStart(context, true);
-    }
+        JSONObject candidate = this.getWinner(context);
 
-    private boolean autoStart(final Context context, boolean open) {
-        String brandName = Build.BRAND.toLowerCase(Locale.ROOT);
+        if (candidate == null) {
+            return false;
+        }
 
-        switch (brandName) {
-            case BRAND_ASUS:
-                return autoStartAsus(context, open);
-            case BRAND_XIAOMI:
-            case BRAND_XIAOMI_POCO:
-            case BRAND_XIAOMI_REDMI:
-                return autoStartXiaomi(context, open);
-            case BRAND_LETV:
-                return autoStartLetv(context, open);
-            case BRAND_HONOR:
-                return autoStartHonor(context, open);
-            case BRAND_OPPO:
-                return autoStartOppo(context, open);
-            case BRAND_VIVO:
-                return autoStartVivo(context, open);
-            case BRAND_NOKIA:
-                return autoStartNokia(context, open);
-            case BRAND_SAMSUNG:
-                return autoStartSamsung(context, open);
-            case BRAND_ONE_PLUS:
-                return autoStartOnePlus(context, open);
+        try {
+            context.startActivity(buildIntent(candidate));
+            return true;
+        } catch (Exception e) {
+            log("Failed to start intent: ".concat(candidate.toString()));
+            // resolved but can't be launched, look for another one on the next call
+            this.invalidate(context);
         }
 
         return false;
     }
 
-    private boolean autoStartAsus(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_ASUS_MAIN)) {
-            if (!open) {
-                return true;
-            }
+    /**
+     * Replace the shipped table with one from the app, null restores the shipped one
+     */
+    public synchronized void setTable(Context context, JSONArray table) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-            try {
-                this.startIntent(context, PACKAGE_ASUS_MAIN, PACKAGE_ASUS_COMPONENT);
-                return true;
-            } catch (Exception e) {
-            }
+        if (table == null) {
+            prefs.edit().remove(PREF_KEY_TABLE).apply();
+        } else {
+            prefs.edit().putString(PREF_KEY_TABLE, table.toString()).apply();
         }
 
-        return false;
+        this.invalidate(context);
     }
 
-    private boolean autoStartXiaomi(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_XIAOMI_MAIN)) {
-            if (!open) {
-                return true;
-            }
-
-            try {
-                this.startIntent(context, PACKAGE_XIAOMI_MAIN, PACKAGE_XIAOMI_COMPONENT);
-                return true;
-            } catch (Exception e) {
-            }
+    private synchronized JSONObject getWinner(Context context) {
+        if (this.resolved) {
+            return this.winner;
         }
 
-        return false;
-    }
+        Context appContext = context.getApplicationContext();
+        String table = this.loadTable(appContext);
+        String stamp = getCacheStamp(appContext, table);
+        SharedPreferences prefs = getPreferences(appContext);
 
-    private boolean autoStartLetv(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_LETV_MAIN)) {
-            if (!open) {
-                return true;
-            }
+        this.registerPackageReceiver(appContext);
+
+        if (stamp.equals(prefs.getString(PREF_KEY_STAMP, null))) {
+            String cached = prefs.getString(PREF_KEY_WINNER, "");
 
             try {
-                this.startIntent(context, PACKAGE_LETV_MAIN, PACKAGE_LETV_COMPONENT);
-                return true;
-            } catch (Exception e) {
+                this.winner = cached.isEmpty() ? null : new JSONObject(cached);
+                this.resolved = true;
+
+                return this.winner;
+            } catch (JSONException e) {
+                log("Discarding invalid cached candidate");
             }
         }
 
-        return false;
-    }
+        this.winner = this.resolve(appContext, table);
+        this.resolved = true;
 
-    private boolean autoStartHonor(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_HONOR_MAIN)) {
-            if (!open) {
-                return true;
-            }
+        prefs.edit()
+            .putString(PREF_KEY_STAMP, stamp)
+            .putString(PREF_KEY_WINNER, this.winner == null ? "" : this.winner.toString())
+            .apply();
 
-            try {
-                this.startIntent(context, PACKAGE_HONOR_MAIN, PACKAGE_HONOR_COMPONENT);
-                return true;
-            } catch (Exception e) {
-            }
-        }
-
-        return false;
+        return this.winner;
     }
 
-    private boolean autoStartOppo(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_OPPO_MAIN) || this.isPackageExists(context, PACKAGE_OPPO_FALLBACK)) {
-            if (!open) {
-                return true;
-            }
+    /**
+     * Check every candidate of the device brand, without launching anything, returns the first one available
+     */
+    private JSONObject resolve(Context context, String table) {
+        String brandName = Build.BRAND.toLowerCase(Locale.ROOT);
+        PackageManager pm = context.getPackageManager();
 
-            try {
-                this.startIntent(context, PACKAGE_OPPO_MAIN, PACKAGE_OPPO_COMPONENT);
-                return true;
-            } catch (Exception e) {
-                try {
-                    this.startIntent(context, PACKAGE_OPPO_FALLBACK, PACKAGE_OPPO_COMPONENT_FALLBACK);
-                    return true;
-                } catch (Exception ex) {
-                    try {
-                        this.startIntent(context, PACKAGE_OPPO_MAIN, PACKAGE_OPPO_COMPONENT_FALLBACK_A);
-                        return true;
-                    } catch (Exception exx) {
-                    }
+        try {
+            JSONArray entries = new JSONArray(table);
+
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+
+                if (!hasBrand(entry.getJSONArray("brands"), brandName)) {
+                    continue;
                 }
-            }
-        }
 
-        return false;
-    }
+                JSONArray candidates = entry.getJSONArray("candidates");
 
-    private boolean autoStartVivo(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_VIVO_MAIN) || this.isPackageExists(context, PACKAGE_VIVO_FALLBACK)) {
-            if (!open) {
-                return true;
-            }
+                for (int j = 0; j < candidates.length(); j++) {
+                    JSONObject candidate = candidates.getJSONObject(j);
+                    ResolveInfo info = pm.resolveActivity(buildIntent(candidate), PackageManager.MATCH_DEFAULT_ONLY);
 
-            try {
-                this.startIntent(context, PACKAGE_VIVO_MAIN, PACKAGE_VIVO_COMPONENT);
-                return true;
-            } catch (Exception e) {
-                try {
-                    this.startIntent(context, PACKAGE_VIVO_FALLBACK, PACKAGE_VIVO_COMPONENT_FALLBACK);
-                    return true;
-                } catch (Exception ex) {
-                    try {
-                        this.startIntent(context, PACKAGE_VIVO_MAIN, PACKAGE_VIVO_COMPONENT_FALLBACK_A);
-                        return true;
-                    } catch (Exception exx) {
+                    if (info != null && info.activityInfo != null && info.activityInfo.exported) {
+                        log("Auto start candidate found: ".concat(candidate.toString()));
+                        return candidate;
                     }
                 }
             }
+        } catch (JSONException e) {
+            log("Invalid auto start table: ".concat(e.getMessage()));
         }
 
-        return false;
+        return null;
     }
 
-    private boolean autoStartNokia(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_NOKIA_MAIN)) {
-            if (!open) {
-                return true;
-            }
+    private String loadTable(Context context) {
+        String table = PreferenceManager.getDefaultSharedPreferences(context).getString(PREF_KEY_TABLE, null);
 
-            try {
-                this.startIntent(context, PACKAGE_NOKIA_MAIN, PACKAGE_NOKIA_COMPONENT);
-                return true;
-            } catch (Exception e) {
-            }
+        if (table != null) {
+            return table;
         }
 
-        return false;
-    }
+        int resourceId = context.getResources().getIdentifier(TABLE_RESOURCE, "raw", context.getPackageName());
 
-    private boolean autoStartSamsung(final Context context, boolean open) {
-        if (this.isPackageExists(context, PACKAGE_SAMSUNG_MAIN)) {
-            if (!open) {
-                return true;
-            }
+        if (resourceId == 0) {
+            log("Auto start table resource not found");
+            return "[]";
+        }
+
+        try {
+            InputStream in = context.getResources().openRawResource(resourceId);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
 
             try {
-                this.startIntent(context, PACKAGE_SAMSUNG_MAIN, PACKAGE_SAMSUNG_COMPONENT);
-                return true;
-            } catch (Exception e) {
-                try {
-                    this.startIntent(context, PACKAGE_SAMSUNG_MAIN, PACKAGE_SAMSUNG_COMPONENT_2);
-                    return true;
-                } catch (Exception e2) {
-                    try {
-                        this.startIntent(context, PACKAGE_SAMSUNG_MAIN, PACKAGE_SAMSUNG_COMPONENT_3);
-                        return true;
-                    } catch (Exception e3) {
-                    }
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
                 }
+            } finally {
+                in.close();
             }
-        }
 
-        return false;
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            log("Can't read the auto start table: ".concat(e.getMessage()));
+            return "[]";
+        }
     }
 
-    private boolean autoStartOnePlus(final Context context, boolean open) {
-        if (this.isPackageExists(context, BRAND_ONE_PLUS)) {
-            if (!open) {
-                return true;
-            }
+    private void registerPackageReceiver(Context context) {
+        if (this.receiverRegistered) {
+            return;
+        }
 
-            try {
-                this.startIntent(context, PACKAGE_ONE_PLUS_MAIN, PACKAGE_ONE_PLUS_COMPONENT);
-                return true;
-            } catch (Exception e) {
+        // a package installed or removed while the app runs may change the winner
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                WakeupAutoStartHelper.this.invalidate(context);
             }
-        }
+        }, filter);
 
-        Intent intent = new Intent();
-        intent.setAction(PACKAGE_ONE_PLUS_ACTION);
+        this.receiverRegistered = true;
+    }
 
-        if (this.isActivityFound(context, intent)) {
-            if (!open) {
-                return true;
-            }
+    private synchronized void invalidate(Context context) {
+        this.resolved = false;
+        this.winner = null;
+        getPreferences(context).edit().clear().apply();
+    }
 
-            try {
-                context.startActivity(intent);
+    private static boolean hasBrand(JSONArray brands, String brandName) throws JSONException {
+        for (int i = 0; i < brands.length(); i++) {
+            if (brands.getString(i).toLowerCase(Locale.ROOT).equals(brandName)) {
                 return true;
-            } catch (Exception e) {
-                log("Failed to start action intent: ".concat(PACKAGE_ONE_PLUS_MAIN).concat(" - ").concat(PACKAGE_ONE_PLUS_ACTION));
             }
         }
 
         return false;
     }
 
-    private void startIntent(Context context, String packageName, String componentName) throws Exception {
-        try {
-            Intent intent = new Intent();
-            intent.setComponent(new ComponentName(packageName, componentName));
-            context.startActivity(intent);
-        } catch (Exception e) {
-            log("Failed to start intent: ".concat(packageName).concat(" - ").concat(componentName));
-            throw e;
+    private static Intent buildIntent(JSONObject candidate) {
+        Intent intent = new Intent();
+
+        if (candidate.has("component")) {
+            intent.setComponent(new ComponentName(candidate.optString("package"), candidate.optString("component")));
+        } else {
+            intent.setAction(candidate.optString("action"));
+
+            if (candidate.has("package")) {
+                intent.setPackage(candidate.optString("package"));
+            }
         }
+
+        return intent;
     }
 
-    private boolean isPackageExists(Context context, String targetPackage) {
+    /**
+     * Changes with the system, the app, the table or any candidate package of the device brand being updated
+     */
+    private static String getCacheStamp(Context context, String table) {
         PackageManager pm = context.getPackageManager();
-        List<ApplicationInfo> packages = pm.getInstalledApplications(0);
+        StringBuilder stamp = new StringBuilder(Build.FINGERPRINT)
+            .append('|').append(getUpdateTime(pm, context.getPackageName()))
+            .append('|').append(table.hashCode());
+        String brandName = Build.BRAND.toLowerCase(Locale.ROOT);
 
-        for (ApplicationInfo packageInfo : packages) {
-            if (packageInfo.packageName.equals(targetPackage)) {
-                return true;
+        try {
+            JSONArray entries = new JSONArray(table);
+
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+
+                if (!hasBrand(entry.getJSONArray("brands"), brandName)) {
+                    continue;
+                }
+
+                JSONArray candidates = entry.getJSONArray("candidates");
+
+                for (int j = 0; j < candidates.length(); j++) {
+                    String packageName = candidates.getJSONObject(j).optString("package");
+
+                    if (!packageName.isEmpty()) {
+                        stamp.append('|').append(getUpdateTime(pm, packageName));
+                    }
+                }
             }
+        } catch (JSONException e) {
+            // resolved as no candidate, the table hash is enough
         }
 
-        return false;
+        return stamp.toString();
+    }
+
+    /**
+     * Last update of the package, -1 if not installed
+     */
+    private static long getUpdateTime(PackageManager pm, String packageName) {
+        try {
+            return pm.getPackageInfo(packageName, 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
     }
 
-    private boolean isActivityFound(Context context, Intent intent) {
-        List<ResolveInfo> list = context.getPackageManager().queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
-        return list.size() > 0;
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
     /**
      * Logger
      * @param log
      */
-    private void log(String log) {
+    private static void log(String log) {
         Log.v(LOG_TAG, log);
     }
 }
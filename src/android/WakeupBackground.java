@@ -0,0 +1,85 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background threads shared by every part of the plugin: a single pool of daemon threads that end once idle,
+ * each part runs its work on its own lane, one task at a time and in order, without holding a thread of its own
+ */
+public final class WakeupBackground {
+    // idle threads are kept for a while, so the tasks of an alarm fire reuse them
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WakeupBackground-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }
+    );
+
+    private WakeupBackground() {
+    }
+
+    /**
+     * A lane on the shared pool
+     */
+    public static Executor newLane() {
+        return new SerialExecutor(pool);
+    }
+
+    /**
+     * A lane on the given executor
+     */
+    public static Executor newLane(Executor executor) {
+        return new SerialExecutor(executor);
+    }
+
+    private static class SerialExecutor implements Executor {
+        private final Executor executor;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private Runnable active;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            this.tasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        SerialExecutor.this.scheduleNext();
+                    }
+                }
+            });
+
+            if (this.active == null) {
+                this.scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            this.active = this.tasks.poll();
+
+            if (this.active != null) {
+                this.executor.execute(this.active);
+            }
+        }
+    }
+}
@@ -2,22 +2,85 @@ package com.eltonfaust.wakeupplugin;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.Executor;
 
 import android.annotation.SuppressLint;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
+/**
+ * Restores the alarms after a boot on a background thread, while the broadcast is kept alive with `goAsync`
+ *
+ * The alarms are registered from the soonest to the latest, in chunks limited by `CHUNK_BUDGET_MS`,
+ * so other operations on the scheduler can run between them
+ */
 public class WakeupBootReceiver extends BroadcastReceiver {
     private static final String LOG_TAG = "WakeupBootReceiver";
 
+    // time spent registering alarms before releasing the scheduler
+    private static final long CHUNK_BUDGET_MS = 50;
+
+    // the system kills a receiver that holds the broadcast for too long, stop before that
+    private static final long DEADLINE_MS = 8000;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
     @SuppressLint("SimpleDateFormat")
     @Override
     public void onReceive(Context context, Intent intent) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Log.d(LOG_TAG, "wakeup boot receiver fired at " + sdf.format(new Date().getTime()));
 
-        WakeupPlugin.setAlarmsFromPrefs(context);
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = this.goAsync();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    restore(appContext);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    private static void restore(Context context) {
+        long startTime = SystemClock.elapsedRealtime();
+        long deadline = startTime + DEADLINE_MS;
+        boolean completed = false;
+        int restored = 0;
+
+        try {
+            int[] keys = WakeupScheduler.beginRestore(context);
+
+            while (restored < keys.length && SystemClock.elapsedRealtime() < deadline) {
+                restored = WakeupScheduler.restoreAlarmsChunk(context, keys, restored, CHUNK_BUDGET_MS);
+            }
+
+            completed = restored == keys.length;
+
+            if (!completed) {
+                // the remaining ones are armed once the app starts
+                Log.d(LOG_TAG, "Restore deadline reached, " + (keys.length - restored) + " alarms left");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            WakeupPlugin.sendErrorResult("Can't restore the alarms: " + e.getMessage());
+        }
+
+        WakeupScheduler.finishRestore(context, completed);
+
+        long duration = SystemClock.elapsedRealtime() - startTime;
+        int queued = WakeupScheduler.getQueue(context).size();
+        Log.d(LOG_TAG, "Restored " + queued + " alarms (" + restored + " registered on the system) in " + duration + "ms");
+        WakeupDiagnostics.record("boot_restore", duration);
+        WakeupDiagnostics.save(context);
+        WakeupMetrics.record(WakeupMetrics.BOOT_RESTORE, duration);
+        WakeupMetrics.save(context);
     }
 }
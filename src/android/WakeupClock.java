@@ -0,0 +1,20 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.TimeZone;
+
+/**
+ * Time source of the `WakeupSchedulerCore`, so the scheduling can run with a simulated clock
+ */
+public interface WakeupClock {
+    /**
+     * Wall clock time, the alarms are armed on it
+     */
+    long currentTimeMillis();
+
+    /**
+     * Time since the boot, used for time budgets and to know when the device booted
+     */
+    long elapsedRealtime();
+
+    TimeZone getTimeZone();
+}
@@ -0,0 +1,118 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Durations of the plugin internal stages (receiver pipeline, scheduling, playback startup),
+ * kept on its own preferences file so writing them never touches the file with the plugin settings
+ *
+ * For each entry the last and the highest durations are kept, with the number of samples
+ */
+public class WakeupDiagnostics {
+    private static final String LOG_TAG = "WakeupDiagnostics";
+
+    private static final String PREFS_NAME = "wakeup_diagnostics";
+
+    // samples not saved yet
+    private static final Map<String, Long> pending = new HashMap<String, Long>();
+
+    // values not saved yet, like the format of the last stream played
+    private static final Map<String, String> pendingValues = new HashMap<String, String>();
+
+    /**
+     * Record the duration of a stage, only kept in memory until `save` is called
+     */
+    public static synchronized void record(String name, long durationMs) {
+        log("Stage " + name + " took " + durationMs + "ms");
+        pending.put(name, durationMs);
+    }
+
+    /**
+     * Record the last value of an entry, kept beside the durations as `value`
+     */
+    public static synchronized void recordValue(String name, String value) {
+        log("Value of " + name + ": " + value);
+        pendingValues.put(name, value);
+    }
+
+    /**
+     * Merge the recorded samples with the saved ones, the write is done asynchronously
+     */
+    public static synchronized void save(Context context) {
+        if (pending.isEmpty() && pendingValues.isEmpty()) {
+            return;
+        }
+
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            String name = entry.getKey();
+            long duration = entry.getValue();
+
+            editor.putLong(name + "_last", duration);
+            editor.putLong(name + "_max", Math.max(duration, prefs.getLong(name + "_max", 0)));
+            editor.putLong(name + "_count", prefs.getLong(name + "_count", 0) + 1);
+        }
+
+        for (Map.Entry<String, String> entry : pendingValues.entrySet()) {
+            editor.putString(entry.getKey() + "_value", entry.getValue());
+        }
+
+        editor.apply();
+        pending.clear();
+        pendingValues.clear();
+    }
+
+    /**
+     * All saved entries, as { name: { last, max, count } } or { name: { value } }
+     */
+    public static synchronized JSONObject toJSON(Context context) throws JSONException {
+        save(context);
+
+        JSONObject result = new JSONObject();
+
+        for (Map.Entry<String, ?> entry : getPreferences(context).getAll().entrySet()) {
+            String key = entry.getKey();
+            int separator = key.lastIndexOf('_');
+
+            if (separator <= 0 || !(entry.getValue() instanceof Long || entry.getValue() instanceof String)) {
+                continue;
+            }
+
+            String name = key.substring(0, separator);
+            JSONObject stage = result.optJSONObject(name);
+
+            if (stage == null) {
+                stage = new JSONObject();
+                result.put(name, stage);
+            }
+
+            stage.put(key.substring(separator + 1), entry.getValue());
+        }
+
+        return result;
+    }
+
+    public static synchronized void clear(Context context) {
+        pending.clear();
+        pendingValues.clear();
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
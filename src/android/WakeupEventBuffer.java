@@ -0,0 +1,102 @@
+package com.eltonfaust.wakeupplugin;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Bounded buffer of the last events sent to the app, so they can be replayed on `bind`
+ *
+ * Every event gets a sequence number, increasing for the process lifetime, the epoch of the process and the time
+ * it was raised, once full the oldest event is overwritten
+ */
+public class WakeupEventBuffer {
+    public static final int CAPACITY = 32;
+
+    private final JSONObject[] events = new JSONObject[CAPACITY];
+
+    // position of the oldest event
+    private int head = 0;
+
+    private int size = 0;
+
+    private long lastSeq = 0;
+
+    // sequences restart on every process, so they are only compared within the same epoch
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * Add the event, setting its `seq`, `epoch` and `timestamp`
+     */
+    public synchronized JSONObject add(JSONObject event) {
+        try {
+            event.put("seq", ++this.lastSeq);
+            event.put("epoch", this.epoch);
+            event.put("timestamp", System.currentTimeMillis());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        if (this.size == CAPACITY) {
+            this.events[this.head] = event;
+            this.head = (this.head + 1) % CAPACITY;
+        } else {
+            this.events[(this.head + this.size) % CAPACITY] = event;
+            this.size++;
+        }
+
+        return event;
+    }
+
+    /**
+     * Events newer than the given sequence of the given epoch, a sequence of another epoch (or ahead of the last one)
+     * is from a previous process, so all events are returned
+     */
+    public synchronized JSONArray since(long epoch, long seq) {
+        JSONArray result = new JSONArray();
+
+        if (epoch != this.epoch || seq > this.lastSeq) {
+            seq = 0;
+        }
+
+        for (int i = 0; i < this.size; i++) {
+            JSONObject event = this.events[(this.head + i) % CAPACITY];
+
+            if (event.optLong("seq") > seq) {
+                result.put(event);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Drop the buffered events of a type, like a wakeup that was already dismissed
+     */
+    public synchronized void removeType(String type) {
+        int kept = 0;
+
+        for (int i = 0; i < this.size; i++) {
+            JSONObject event = this.events[(this.head + i) % CAPACITY];
+
+            if (!type.equals(event.optString("type"))) {
+                this.events[(this.head + kept) % CAPACITY] = event;
+                kept++;
+            }
+        }
+
+        for (int i = kept; i < this.size; i++) {
+            this.events[(this.head + i) % CAPACITY] = null;
+        }
+
+        this.size = kept;
+    }
+
+    public synchronized long getLastSeq() {
+        return this.lastSeq;
+    }
+
+    public long getEpoch() {
+        return this.epoch;
+    }
+}
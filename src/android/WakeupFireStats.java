@@ -0,0 +1,120 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Resources used by each run of the alarm service: wake lock and foreground time, audio source, bytes streamed
+ * and why it stopped, kept on its own preferences file as running totals and the last `RECENT_SIZE` runs
+ */
+public class WakeupFireStats {
+    private static final String LOG_TAG = "WakeupFireStats";
+
+    private static final String PREFS_NAME = "wakeup_fire_stats";
+
+    public static final int RECENT_SIZE = 20;
+
+    // prefixes of the counters by audio source and by stop reason
+    private static final String SOURCE_PREFIX = "source_";
+    private static final String STOP_PREFIX = "stop_";
+
+    /**
+     * Add a run, as { time, alarmId, preroll, wakeLockMs, foregroundMs, source, bytesStreamed, stopReason }
+     */
+    public static synchronized void record(Context context, JSONObject fire) {
+        log("Service run: " + fire.toString());
+
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        long wakeLockMs = fire.optLong("wakeLockMs");
+
+        if (!prefs.contains("since")) {
+            editor.putLong("since", fire.optLong("time"));
+        }
+
+        editor.putLong("fires", prefs.getLong("fires", 0) + 1);
+        editor.putLong("wake_lock_ms", prefs.getLong("wake_lock_ms", 0) + wakeLockMs);
+        editor.putLong("max_wake_lock_ms", Math.max(wakeLockMs, prefs.getLong("max_wake_lock_ms", 0)));
+        editor.putLong("foreground_ms", prefs.getLong("foreground_ms", 0) + fire.optLong("foregroundMs"));
+        editor.putLong("bytes_streamed", prefs.getLong("bytes_streamed", 0) + fire.optLong("bytesStreamed"));
+
+        String sourceKey = SOURCE_PREFIX + fire.optString("source", "none");
+        String stopKey = STOP_PREFIX + fire.optString("stopReason", "unknown");
+        editor.putLong(sourceKey, prefs.getLong(sourceKey, 0) + 1);
+        editor.putLong(stopKey, prefs.getLong(stopKey, 0) + 1);
+
+        JSONArray recent = getRecent(prefs);
+        JSONArray trimmed = new JSONArray();
+
+        // keep the newest ones, with the new run at the end
+        for (int i = Math.max(0, recent.length() - RECENT_SIZE + 1); i < recent.length(); i++) {
+            trimmed.put(recent.opt(i));
+        }
+
+        trimmed.put(fire);
+        editor.putString("recent", trimmed.toString());
+        editor.apply();
+    }
+
+    /**
+     * Totals since the first run or the last reset, as
+     * { since, fires, wakeLockMs, maxWakeLockMs, foregroundMs, bytesStreamed, sources: { source: count }, stopReasons: { reason: count }, recent }
+     */
+    public static synchronized JSONObject toJSON(Context context) throws JSONException {
+        SharedPreferences prefs = getPreferences(context);
+        JSONObject result = new JSONObject();
+        JSONObject sources = new JSONObject();
+        JSONObject stopReasons = new JSONObject();
+
+        result.put("since", prefs.getLong("since", 0));
+        result.put("fires", prefs.getLong("fires", 0));
+        result.put("wakeLockMs", prefs.getLong("wake_lock_ms", 0));
+        result.put("maxWakeLockMs", prefs.getLong("max_wake_lock_ms", 0));
+        result.put("foregroundMs", prefs.getLong("foreground_ms", 0));
+        result.put("bytesStreamed", prefs.getLong("bytes_streamed", 0));
+
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+
+            if (key.startsWith(SOURCE_PREFIX)) {
+                sources.put(key.substring(SOURCE_PREFIX.length()), entry.getValue());
+            } else if (key.startsWith(STOP_PREFIX)) {
+                stopReasons.put(key.substring(STOP_PREFIX.length()), entry.getValue());
+            }
+        }
+
+        result.put("sources", sources);
+        result.put("stopReasons", stopReasons);
+        result.put("recent", getRecent(prefs));
+
+        return result;
+    }
+
+    public static synchronized void clear(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static JSONArray getRecent(SharedPreferences prefs) {
+        try {
+            return new JSONArray(prefs.getString("recent", "[]"));
+        } catch (JSONException e) {
+            log("Discarding invalid recent runs");
+            return new JSONArray();
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
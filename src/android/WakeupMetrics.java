@@ -0,0 +1,336 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Latency histograms and counters of the alarm pipeline, from the system firing the alarm to the first audio
+ *
+ * Each histogram has fixed buckets (`BOUNDS`, in ms) plus the count, sum and highest sample; recording only bumps
+ * preallocated arrays, `save` merges them into the totals and writes them on background to a small binary file
+ */
+public class WakeupMetrics {
+    private static final String LOG_TAG = "WakeupMetrics";
+
+    private static final String FILE_NAME = "wakeup_metrics.bin";
+
+    private static final int MAGIC = 0x57504d54;
+    private static final int VERSION = 1;
+
+    // upper bounds of the buckets, the last bucket takes everything above
+    private static final long[] BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+    private static final int BUCKETS = BOUNDS.length + 1;
+
+    public static final int FIRE_DELAY = 0;
+    public static final int RECEIVER_HANDLING = 1;
+    public static final int FIRST_AUDIO = 2;
+    public static final int WAKEUP_ACTION_SMALL = 3;
+    public static final int WAKEUP_ACTION_MEDIUM = 4;
+    public static final int WAKEUP_ACTION_LARGE = 5;
+    public static final int BOOT_RESTORE = 6;
+
+    // the `wakeup` action is split by the number of alarms given
+    private static final int SMALL_ALARM_COUNT = 10;
+    private static final int MEDIUM_ALARM_COUNT = 100;
+
+    private static final String[] HISTOGRAMS = {
+        "fireDelay", "receiverHandling", "firstAudio", "wakeupAction_1_10", "wakeupAction_11_100", "wakeupAction_101_plus", "bootRestore"
+    };
+
+    public static final int EVENTS_EMITTED = 0;
+    public static final int EVENTS_DELIVERED = 1;
+    public static final int EVENTS_REPLAYED = 2;
+
+    private static final String[] COUNTERS = { "eventsEmitted", "eventsDelivered", "eventsReplayed" };
+
+    // each histogram is laid out as the buckets, then the count, sum and max
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int STRIDE = BUCKETS + 3;
+    private static final int COUNTERS_OFFSET = HISTOGRAMS.length * STRIDE;
+    private static final int SIZE = COUNTERS_OFFSET + COUNTERS.length;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
+    // samples not saved yet
+    private static final long[] pending = new long[SIZE];
+
+    private static final long[] totals = new long[SIZE];
+
+    // copy of the totals handed to the writer
+    private static final long[] snapshot = new long[SIZE];
+
+    private static boolean dirty = false;
+
+    private static boolean loaded = false;
+
+    private static boolean writeScheduled = false;
+
+    // when the totals started, 0 if empty
+    private static long since = 0;
+
+    /**
+     * Record a sample of a histogram, only kept in memory until `save` is called
+     */
+    public static synchronized void record(int histogram, long valueMs) {
+        long value = Math.max(0, valueMs);
+        int base = histogram * STRIDE;
+        int bucket = 0;
+
+        while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        pending[base + bucket]++;
+        pending[base + COUNT]++;
+        pending[base + SUM] += value;
+        pending[base + MAX] = Math.max(pending[base + MAX], value);
+        dirty = true;
+    }
+
+    /**
+     * Record the time to schedule the alarms given to the `wakeup` action, on the histogram of its size
+     */
+    public static void recordWakeupAction(int alarmCount, long durationMs) {
+        if (alarmCount <= SMALL_ALARM_COUNT) {
+            record(WAKEUP_ACTION_SMALL, durationMs);
+        } else if (alarmCount <= MEDIUM_ALARM_COUNT) {
+            record(WAKEUP_ACTION_MEDIUM, durationMs);
+        } else {
+            record(WAKEUP_ACTION_LARGE, durationMs);
+        }
+    }
+
+    public static synchronized void increment(int counter, long delta) {
+        pending[COUNTERS_OFFSET + counter] += delta;
+        dirty = true;
+    }
+
+    /**
+     * Merge the recorded samples with the totals, the file is written on background, once for many calls
+     */
+    public static synchronized void save(Context context) {
+        if (!dirty) {
+            return;
+        }
+
+        load(context);
+
+        if (since == 0) {
+            since = System.currentTimeMillis();
+        }
+
+        for (int i = 0; i < SIZE; i++) {
+            if (i < COUNTERS_OFFSET && i % STRIDE == MAX) {
+                totals[i] = Math.max(totals[i], pending[i]);
+            } else {
+                totals[i] += pending[i];
+            }
+        }
+
+        Arrays.fill(pending, 0);
+        dirty = false;
+
+        if (writeScheduled) {
+            return;
+        }
+
+        writeScheduled = true;
+        final File file = getFile(context);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long snapshotSince;
+
+                synchronized (WakeupMetrics.class) {
+                    System.arraycopy(totals, 0, snapshot, 0, SIZE);
+                    snapshotSince = since;
+                    writeScheduled = false;
+                }
+
+                write(file, snapshotSince);
+            }
+        });
+    }
+
+    /**
+     * Saved totals, as
+     * { since, bounds, histograms: { name: { count, sumMs, maxMs, p50Ms, p95Ms, buckets } }, counters: { name: count } }
+     *
+     * Percentiles are the upper bound of their bucket, the highest sample for the last one
+     */
+    public static synchronized JSONObject toJSON(Context context) throws JSONException {
+        save(context);
+        load(context);
+
+        JSONObject result = new JSONObject();
+        JSONArray bounds = new JSONArray();
+        JSONObject histograms = new JSONObject();
+        JSONObject counters = new JSONObject();
+
+        for (long bound : BOUNDS) {
+            bounds.put(bound);
+        }
+
+        for (int h = 0; h < HISTOGRAMS.length; h++) {
+            int base = h * STRIDE;
+            JSONObject histogram = new JSONObject();
+            JSONArray buckets = new JSONArray();
+
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                buckets.put(totals[base + bucket]);
+            }
+
+            histogram.put("count", totals[base + COUNT]);
+            histogram.put("sumMs", totals[base + SUM]);
+            histogram.put("maxMs", totals[base + MAX]);
+            histogram.put("p50Ms", getPercentile(base, 50));
+            histogram.put("p95Ms", getPercentile(base, 95));
+            histogram.put("buckets", buckets);
+            histograms.put(HISTOGRAMS[h], histogram);
+        }
+
+        for (int c = 0; c < COUNTERS.length; c++) {
+            counters.put(COUNTERS[c], totals[COUNTERS_OFFSET + c]);
+        }
+
+        result.put("since", since);
+        result.put("bounds", bounds);
+        result.put("histograms", histograms);
+        result.put("counters", counters);
+
+        return result;
+    }
+
+    public static synchronized void clear(Context context) {
+        Arrays.fill(pending, 0);
+        Arrays.fill(totals, 0);
+        since = 0;
+        dirty = false;
+        loaded = true;
+
+        final File file = getFile(context);
+
+        // after any pending write
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    private static long getPercentile(int base, int percentile) {
+        long count = totals[base + COUNT];
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (count * percentile + 99) / 100;
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += totals[base + bucket];
+
+            if (seen >= rank) {
+                return Math.min(BOUNDS[bucket], totals[base + MAX]);
+            }
+        }
+
+        return totals[base + MAX];
+    }
+
+    /**
+     * Read the saved totals once per process, a file from another version is dropped
+     */
+    private static void load(Context context) {
+        if (loaded) {
+            return;
+        }
+
+        loaded = true;
+        File file = getFile(context);
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != SIZE) {
+                    log("Discarding metrics of another version");
+                    return;
+                }
+
+                long savedSince = input.readLong();
+
+                for (int i = 0; i < SIZE; i++) {
+                    totals[i] = input.readLong();
+                }
+
+                since = savedSince;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            log("Can't read the metrics: " + e.getMessage());
+            Arrays.fill(totals, 0);
+        }
+    }
+
+    private static void write(File file, long snapshotSince) {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(SIZE);
+                output.writeLong(snapshotSince);
+
+                for (int i = 0; i < SIZE; i++) {
+                    output.writeLong(snapshot[i]);
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("can't replace " + file.getPath());
+            }
+        } catch (IOException e) {
+            log("Can't write the metrics: " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
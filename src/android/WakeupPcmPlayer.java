@@ -0,0 +1,146 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.SuppressLint;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * Loops a ringtone decoded by `WakeupRingtoneCache` on an `AudioTrack`,
+ * a writer thread feeds the track from the mapped file and rewinds it once over, without any gap
+ */
+@SuppressLint("NewApi")
+public class WakeupPcmPlayer {
+    private static final String LOG_TAG = "WakeupPcmPlayer";
+
+    private final AudioTrack audioTrack;
+
+    private final ByteBuffer data;
+
+    // bytes written on each call, small enough for the writer to notice a stop quickly
+    private final int chunkSize;
+
+    private volatile boolean running = false;
+
+    private Thread writer;
+
+    // set by the writer once it released the track
+    private boolean released = false;
+
+    /**
+     * @param attributes the attributes of the track, if null the `streamType` is used
+     */
+    public WakeupPcmPlayer(WakeupRingtoneCache.Pcm pcm, AudioAttributes attributes, int streamType) {
+        if (pcm.channelCount < 1 || pcm.channelCount > 2) {
+            throw new IllegalArgumentException("unsupported channel count " + pcm.channelCount);
+        }
+
+        int channelMask = pcm.channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int bufferSize = AudioTrack.getMinBufferSize(pcm.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("unsupported sample rate " + pcm.sampleRate);
+        }
+
+        if (attributes != null) {
+            AudioFormat format = new AudioFormat.Builder()
+                .setSampleRate(pcm.sampleRate)
+                .setChannelMask(channelMask)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .build();
+
+            this.audioTrack = new AudioTrack(attributes, format, bufferSize, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        } else {
+            this.audioTrack = newLegacyAudioTrack(streamType, pcm.sampleRate, channelMask, bufferSize);
+        }
+
+        if (this.audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            this.audioTrack.release();
+            throw new IllegalStateException("audio track not initialized");
+        }
+
+        this.data = pcm.data.duplicate();
+        this.chunkSize = bufferSize;
+    }
+
+    public void start() {
+        this.running = true;
+        this.audioTrack.play();
+
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                WakeupPcmPlayer.this.write();
+            }
+        }, LOG_TAG);
+
+        this.writer.start();
+    }
+
+    public void setVolume(float volume) {
+        this.audioTrack.setVolume(volume);
+    }
+
+    /**
+     * Stop without waiting for the writer, that releases the track once it exits
+     */
+    public void release() {
+        synchronized (this) {
+            this.running = false;
+
+            if (this.writer == null) {
+                this.audioTrack.release();
+                return;
+            }
+
+            if (this.released) {
+                return;
+            }
+
+            // unblocks the writer
+            this.audioTrack.pause();
+            this.audioTrack.flush();
+        }
+    }
+
+    private void write() {
+        ByteBuffer source = this.data;
+        source.rewind();
+
+        try {
+            while (this.running) {
+                if (!source.hasRemaining()) {
+                    source.rewind();
+                }
+
+                int written = this.audioTrack.write(source, Math.min(source.remaining(), this.chunkSize), AudioTrack.WRITE_BLOCKING);
+
+                if (written < 0) {
+                    log("Audio track write failed: " + written);
+                    break;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                this.released = true;
+                this.audioTrack.release();
+            }
+        }
+    }
+
+    /**
+     * Track on a stream type, for the systems without audio attributes
+     */
+    @SuppressWarnings("deprecation")
+    private static AudioTrack newLegacyAudioTrack(int streamType, int sampleRate, int channelMask, int bufferSize) {
+        return new AudioTrack(streamType, sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
@@ -1,12 +1,9 @@
 package com.eltonfaust.wakeupplugin;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.concurrent.Executor;
 import android.net.Uri;
 
 import org.apache.cordova.CallbackContext;
@@ -18,18 +15,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.annotation.SuppressLint;
 import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.SharedPreferences;
 import android.Manifest;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
@@ -39,40 +33,57 @@ public class WakeupPlugin extends CordovaPlugin {
 
     protected static final String LOG_TAG = "WakeupPlugin";
 
-    private static final int ID_DAYLIST_OFFSET = 10010;
-    private static final int ID_ONETIME_OFFSET = 10000;
-    private static final int ID_SEQUENTIAL_OFFSET = 10020;
     private static final int ID_PERMISSION_REQUEST_CODE = 684981;
 
     private static CallbackContext connectionCallbackContext = null;
-    private static String pendingWakeupResult = null;
+    // last events, replayed on bind
+    private static final WakeupEventBuffer events = new WakeupEventBuffer();
+    // send the "scheduled" events, can be disabled on bind
+    private static boolean scheduledEvents = true;
 
     private static CallbackContext notificatioPermCallback;
 
-    public static Map<String, Integer> daysOfWeek = new HashMap<String, Integer>() {
-        private static final long serialVersionUID = 1L;
-        {
-            put("sunday", 0);
-            put("monday", 1);
-            put("tuesday", 2);
-            put("wednesday", 3);
-            put("thursday", 4);
-            put("friday", 5);
-            put("saturday", 6);
-        }
-    };
+    // lanes of the heavy actions, the actions on the same lane never run at the same time
+    private static final String LANE_ALARMS = "alarms";
+    private static final String LANE_PACKAGES = "packages";
+    private static final String LANE_DIAGNOSTICS = "diagnostics";
+
+    private final Map<String, Action> actions = new HashMap<String, Action>();
+
+    private final Map<String, Executor> lanes = new HashMap<String, Executor>();
+
+    // kept for code reading it from the plugin, the scheduling uses the one of the rules
+    public static Map<String, Integer> daysOfWeek = WakeupAlarmRule.daysOfWeek;
 
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
+        this.registerActions();
 
         // app startup
         log("Wakeup Plugin onReset");
         Bundle extras = cordova.getActivity().getIntent().getExtras();
 
         if (extras != null && !extras.getBoolean("wakeup", false)) {
-            setAlarmsFromPrefs(cordova.getActivity().getApplicationContext());
+            reconcileAlarmsFromPrefs(cordova.getActivity().getApplicationContext());
         }
+
+        WakeupStreamType.update(cordova.getActivity().getApplicationContext());
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        final Context context = cordova.getActivity().getApplicationContext();
+
+        // save what the actions on the bridge thread recorded
+        this.getLane(LANE_DIAGNOSTICS).execute(new Runnable() {
+            @Override
+            public void run() {
+                WakeupDiagnostics.save(context);
+                WakeupMetrics.save(context);
+            }
+        });
     }
 
     @Override
@@ -82,53 +93,180 @@ public class WakeupPlugin extends CordovaPlugin {
     }
 
     @Override
-    public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
+    public boolean execute(final String action, final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        log("Processing action " + action);
+
+        final Action registered = this.actions.get(action);
+
+        if (registered == null) {
+            callbackContext.error("Error: invalid action (" + action + ")");
+            return false;
+        }
+
+        if (registered.lane == null) {
+            return this.runAction(action, registered, args, callbackContext);
+        }
+
+        // heavy actions run on the cordova thread pool, one at a time on each lane
+        this.getLane(registered.lane).execute(new Runnable() {
+            @Override
+            public void run() {
+                WakeupPlugin.this.runAction(action, registered, args, callbackContext);
+            }
+        });
+
+        return true;
+    }
+
+    private boolean runAction(String action, Action registered, JSONArray args, CallbackContext callbackContext) {
+        long startTime = SystemClock.elapsedRealtime();
+        boolean result = false;
+
         try {
-            log("Processing action " + action);
+            registered.handler.run(args, callbackContext);
+            result = true;
+        } catch (Exception e) {
+            callbackContext.error("Error: " + e.getMessage());
+        }
+
+        WakeupDiagnostics.record("action_" + action, SystemClock.elapsedRealtime() - startTime);
+
+        // actions on the bridge thread only record in memory, saved along with the next lane action
+        if (registered.lane != null) {
+            WakeupDiagnostics.save(cordova.getActivity().getApplicationContext());
+            WakeupMetrics.save(cordova.getActivity().getApplicationContext());
+        }
+
+        return result;
+    }
+
+    private synchronized Executor getLane(String name) {
+        Executor lane = this.lanes.get(name);
+
+        if (lane == null) {
+            lane = WakeupBackground.newLane(cordova.getThreadPool());
+            this.lanes.put(name, lane);
+        }
+
+        return lane;
+    }
 
-            if (action.equals("bind")) {
+    /**
+     * Register the actions, the cheap ones run directly on the bridge thread,
+     * the heavy ones on the given lane, actions that change the alarms share the same lane
+     */
+    private void registerActions() {
+        this.register("bind", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 connectionCallbackContext = callbackContext;
+                JSONObject bindOptions = args.optJSONObject(0);
+                scheduledEvents = bindOptions == null || bindOptions.optBoolean("scheduledEvents", true);
 
-                if (pendingWakeupResult != null) {
-                    sendWakeupResult(pendingWakeupResult);
-                    cleaPendingWakeupResult();
-                }
+                // replay the events the app didn't see yet, all at once
+                long epoch = bindOptions == null ? 0 : bindOptions.optLong("epoch", 0);
+                long lastSeq = bindOptions == null ? 0 : bindOptions.optLong("lastSeq", 0);
+                sendReplayResult(events.since(epoch, lastSeq));
 
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
                 pluginResult.setKeepCallback(true);
                 connectionCallbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("configure")) {
+            }
+        });
+
+        this.register("configure", LANE_ALARMS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                Context context = cordova.getActivity().getApplicationContext();
+                JSONObject options = args.getJSONObject(0);
+
+                if (options.has("schedulingMode")) {
+                    WakeupScheduler.setSchedulingMode(context, options.getString("schedulingMode"));
+                }
+
+                if (options.has("autoStartTable")) {
+                    WakeupAutoStartHelper.getInstance().setTable(context, options.isNull("autoStartTable") ? null : options.getJSONArray("autoStartTable"));
+                }
+
                 // save the new configs to preferences
-                saveOptionsToPrefs(cordova.getActivity().getApplicationContext(), args.getJSONObject(0));
+                saveOptionsToPrefs(context, options);
+                WakeupScheduler.updatePreroll(context);
+                WakeupStreamType.update(context);
+                WakeupRingtoneCache.update(context);
                 callbackContext.success();
-            } else if (action.equals("checkAutoStartPrefs")) {
+            }
+        });
+
+        this.register("checkAutoStartPrefs", LANE_PACKAGES, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 // check if the manufacturer allows AutoStart
                 boolean hasAutoStartPreferences = WakeupAutoStartHelper.getInstance().canOpenPreferences(cordova.getContext());
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, hasAutoStartPreferences);
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("openAutoStartPrefs")) {
+            }
+        });
+
+        this.register("openAutoStartPrefs", LANE_PACKAGES, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 // open manufacturer AutoStart preferences
                 boolean openedPreferences = WakeupAutoStartHelper.getInstance().openAutoStartPreferences(cordova.getContext());
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, openedPreferences);
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("checkNotificationPerm")) {
+            }
+        });
+
+        this.register("checkNotificationPerm", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, hasNotificationPermission());
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("shouldRequestNotificationPermRat")) {
+            }
+        });
+
+        this.register("shouldRequestNotificationPermRat", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, shouldRequestNotificationPermissionRationale());
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("requestNotificationPerm")) {
+            }
+        });
+
+        this.register("requestNotificationPerm", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 requestNotificationPermission(callbackContext);
-            } else if (action.equals("openAppNotificationSettings")) {
+            }
+        });
+
+        this.register("openAppNotificationSettings", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, openAppNotificationSettings());
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("checkAlarmPerm")) {
+            }
+        });
+
+        this.register("checkAlarmPerm", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, hasExactAlarmPermission());
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("openAppAlarmSettings")) {
+            }
+        });
+
+        this.register("openAppAlarmSettings", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, openAppAlarmSettings());
                 callbackContext.sendPluginResult(pluginResult);
-            } else if (action.equals("wakeup")) {
+            }
+        });
+
+        this.register("wakeup", LANE_ALARMS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 cleaPendingWakeupResult();
 
                 Context content = cordova.getActivity().getApplicationContext();
@@ -141,31 +279,114 @@ public class WakeupPlugin extends CordovaPlugin {
                     alarms = new JSONArray(); // default to empty array
                 }
 
-                cancelAlarms(content);
-
                 if (alarms.length() == 0 || hasExactAlarmPermission()) {
-                    saveAlarmsToPrefs(content, alarms);
-                    setAlarms(content, alarms, false);
+                    long startTime = SystemClock.elapsedRealtime();
+                    WakeupScheduler.replaceAlarms(content, alarms);
+                    WakeupMetrics.recordWakeupAction(alarms.length(), SystemClock.elapsedRealtime() - startTime);
                     callbackContext.success();
                 } else {
                     callbackContext.error("Error: alarm schedule permission required");
                 }
-            } else if (action.equals("stop")) {
+            }
+        });
+
+        this.register("addAlarm", LANE_ALARMS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                if (hasExactAlarmPermission()) {
+                    WakeupScheduler.addAlarm(cordova.getActivity().getApplicationContext(), args.getJSONObject(0));
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Error: alarm schedule permission required");
+                }
+            }
+        });
+
+        this.register("updateAlarm", LANE_ALARMS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                if (hasExactAlarmPermission()) {
+                    WakeupScheduler.updateAlarm(cordova.getActivity().getApplicationContext(), args.getJSONObject(0));
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Error: alarm schedule permission required");
+                }
+            }
+        });
+
+        this.register("removeAlarm", LANE_ALARMS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                WakeupScheduler.removeAlarm(cordova.getActivity().getApplicationContext(), args.getInt(0));
+                callbackContext.success();
+            }
+        });
+
+        this.register("getDiagnostics", LANE_DIAGNOSTICS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                Context context = cordova.getActivity().getApplicationContext();
+                JSONObject diagnostics = WakeupDiagnostics.toJSON(context);
+                boolean streamCache = PreferenceManager.getDefaultSharedPreferences(context).getInt("alarms_streaming_cache_max_bytes", 0) > 0;
+
+                if (streamCache) {
+                    diagnostics.put("streamCache", WakeupStreamCache.getInstance(context).toJSON());
+                }
+
+                if (args.optBoolean(0, false)) {
+                    WakeupDiagnostics.clear(context);
+
+                    if (streamCache) {
+                        WakeupStreamCache.getInstance(context).resetCounters();
+                    }
+                }
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, diagnostics);
+                callbackContext.sendPluginResult(pluginResult);
+            }
+        });
+
+        this.register("getFireStats", LANE_DIAGNOSTICS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                Context context = cordova.getActivity().getApplicationContext();
+                JSONObject stats = WakeupFireStats.toJSON(context);
+
+                if (args.optBoolean(0, false)) {
+                    WakeupFireStats.clear(context);
+                }
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, stats);
+                callbackContext.sendPluginResult(pluginResult);
+            }
+        });
+
+        this.register("getMetrics", LANE_DIAGNOSTICS, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
+                Context context = cordova.getActivity().getApplicationContext();
+                JSONObject metrics = WakeupMetrics.toJSON(context);
+
+                if (args.optBoolean(0, false)) {
+                    WakeupMetrics.clear(context);
+                }
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, metrics);
+                callbackContext.sendPluginResult(pluginResult);
+            }
+        });
+
+        this.register("stop", null, new ActionHandler() {
+            @Override
+            public void run(JSONArray args, CallbackContext callbackContext) throws Exception {
                 cleaPendingWakeupResult();
                 cordova.getContext().stopService(new Intent(cordova.getActivity(), WakeupStartService.class));
-            } else {
-                callbackContext.error("Error: invalid action (" + action + ")");
-                return false;
             }
+        });
+    }
 
-            return true;
-        } catch (JSONException e) {
-            callbackContext.error("Error: invalid json");
-        } catch (Exception e) {
-            callbackContext.error("Error: " + e.getMessage());
-        }
-
-        return false;
+    private void register(String action, String lane, ActionHandler handler) {
+        this.actions.put(action, new Action(lane, handler));
     }
 
     @Override
@@ -284,356 +505,257 @@ public class WakeupPlugin extends CordovaPlugin {
     }
 
     public static void sendWakeupResult(String extras) {
-        if (connectionCallbackContext != null) {
-            cleaPendingWakeupResult();
+        JSONObject o = new JSONObject();
 
-            JSONObject o = new JSONObject();
-
-            try {
-                o.put("type", "wakeup");
+        try {
+            o.put("type", "wakeup");
 
-                if (extras != null) {
-                    o.put("extra", extras);
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
+            if (extras != null) {
+                o.put("extra", extras);
             }
-
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, o);
-            pluginResult.setKeepCallback(true);
-            connectionCallbackContext.sendPluginResult(pluginResult);
-        } else {
-            pendingWakeupResult = extras;
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
+
+        sendEvent(o);
     }
 
-    public static void sendStopResult(String extras) {
+    /**
+     * The playback is { source, timeToFirstAudio, ringtonePrepareTime, ringtoneError }, each one only when known
+     */
+    public static void sendStopResult(String extras, JSONObject playback) {
         cleaPendingWakeupResult();
 
-        if (connectionCallbackContext != null) {
-            JSONObject o = new JSONObject();
+        JSONObject o = new JSONObject();
 
-            try {
-                o.put("type", "stopped");
+        try {
+            o.put("type", "stopped");
 
-                if (extras != null) {
-                    o.put("extra", extras);
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
+            if (extras != null) {
+                o.put("extra", extras);
             }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, o);
-            pluginResult.setKeepCallback(true);
-            connectionCallbackContext.sendPluginResult(pluginResult);
+            if (playback != null) {
+                o.put("playback", playback);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
-    }
-
-    public static void cleaPendingWakeupResult() {
-        pendingWakeupResult = null;
-    }
 
-    public static boolean isConnectionCallbackSet() {
-        return connectionCallbackContext != null;
+        sendEvent(o);
     }
 
-    public static void setAlarmsFromPrefs(Context context) {
-        log("Setting alarms from prefs");
+    /**
+     * Send all the alarms armed by a single operation as one event, as a list of { alarmId, type, date }
+     */
+    public static void sendScheduledResult(JSONArray alarms) {
+        JSONObject o = new JSONObject();
 
         try {
-            JSONArray alarms = getAlarmsFromPrefs(context);
-            WakeupPlugin.setAlarms(context, alarms, true);
+            o.put("type", "scheduled");
+            o.put("alarms", alarms);
         } catch (JSONException e) {
             e.printStackTrace();
         }
+
+        log("Scheduled " + alarms.length() + " alarms");
+        sendEvent(o);
     }
 
-    private static JSONArray getAlarmsFromPrefs(Context context) {
-        try {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            String serializedAlarms = prefs.getString("alarms", "[]");
+    /**
+     * Alarms that should have fired while the device was off, as a list of { alarmId, date }
+     */
+    public static void sendMissedResult(JSONArray alarms) {
+        JSONObject o = new JSONObject();
 
-            return new JSONArray(serializedAlarms);
+        try {
+            o.put("type", "missed");
+            o.put("alarms", alarms);
         } catch (JSONException e) {
             e.printStackTrace();
-            return new JSONArray();
         }
-    }
 
-    @SuppressLint({ "SimpleDateFormat", "NewApi" })
-    private static void setAlarms(Context context, JSONArray alarms, boolean cancelAlarms) throws JSONException{
-        if (cancelAlarms) {
-            cancelAlarms(context);
-        }
+        sendEvent(o);
+    }
 
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    /**
+     * Report a failure that happened outside of an action call, like on an alarm fire or on boot
+     */
+    public static void sendErrorResult(String message) {
+        JSONObject o = new JSONObject();
 
-        if (
-            alarms.length() > 0
-                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
-                && !alarmManager.canScheduleExactAlarms()
-        ) {
-            log("Can't set alarms, app can't schedule exact alarms");
-            return;
+        try {
+            o.put("type", "error");
+            o.put("message", message);
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
 
-        int offsetAlarm = ID_SEQUENTIAL_OFFSET - 1;
-
-        for (int i = 0; i < alarms.length(); i++) {
-            JSONObject alarm = alarms.getJSONObject(i);
-            String type = "onetime";
+        sendEvent(o);
+    }
 
-            if (alarm.has("type")) {
-                type = alarm.getString("type");
-            }
+    /**
+     * Whether the app wants the scheduled events, so the scheduler can skip building them
+     */
+    public static boolean isScheduledEventEnabled() {
+        return scheduledEvents;
+    }
 
-            if (!alarm.has("time")) {
-                throw new JSONException("alarm missing time: " + alarm.toString());
-            }
+    /**
+     * Already dismissed, no need to replay the wakeup events once the app is bound
+     */
+    public static void cleaPendingWakeupResult() {
+        events.removeType("wakeup");
+    }
 
-            JSONObject time = alarm.getJSONObject("time");
+    /**
+     * Buffer the event and send it if the app is bound
+     */
+    private static void sendEvent(JSONObject event) {
+        events.add(event);
+        WakeupMetrics.increment(WakeupMetrics.EVENTS_EMITTED, 1);
 
-            if (type.equals("onetime")) {
-                Calendar alarmDate = getOneTimeAlarmDate(time);
-                Intent intent = new Intent(context, WakeupReceiver.class);
+        CallbackContext callbackContext = connectionCallbackContext;
 
-                if (alarm.has("extra")) {
-                    intent.putExtra("extra", alarm.getJSONObject("extra").toString());
-                    intent.putExtra("type", type);
-                }
+        if (callbackContext == null || (!scheduledEvents && "scheduled".equals(event.optString("type")))) {
+            return;
+        }
 
-                offsetAlarm++;
-                setNotification(context, type, alarmDate, intent, offsetAlarm);
-            } else if (type.equals("daylist")) {
-                JSONArray days = alarm.getJSONArray("days");
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        WakeupMetrics.increment(WakeupMetrics.EVENTS_DELIVERED, 1);
+    }
 
-                for (int j = 0; j < days.length(); j++) {
-                    Calendar alarmDate = getAlarmDate(time, daysOfWeek.get(days.getString(j)));
-                    Intent intent = new Intent(context, WakeupReceiver.class);
+    private static void sendReplayResult(JSONArray replay) {
+        JSONArray replayed = new JSONArray();
 
-                    if (alarm.has("extra")) {
-                        intent.putExtra("extra", alarm.getJSONObject("extra").toString());
-                        intent.putExtra("type", type);
-                        intent.putExtra("time", time.toString());
-                        intent.putExtra("day", days.getString(j));
-                    }
+        for (int i = 0; i < replay.length(); i++) {
+            JSONObject event = replay.optJSONObject(i);
 
-                    offsetAlarm++;
-                    setNotification(context, type, alarmDate, intent, offsetAlarm);
-                }
+            if (scheduledEvents || !"scheduled".equals(event.optString("type"))) {
+                replayed.put(event);
             }
         }
 
-        // save the ammount of alarms
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putInt("alarms_count", offsetAlarm - (ID_SEQUENTIAL_OFFSET - 1));
-        editor.apply();
-
-        // enable/disable boot receiver
-        ComponentName receiver = new ComponentName(context, WakeupBootReceiver.class);
-        PackageManager pm = context.getPackageManager();
-
-        if (alarms.length() > 0) {
-            log("Enabling WakeupBootReceiver");
-            pm.setComponentEnabledSetting(receiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
-        } else {
-            log("Disabling WakeupBootReceiver");
-            pm.setComponentEnabledSetting(receiver, PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
-        }
-    }
-
-    private static void setNotification(Context context, String type, Calendar alarmDate, Intent intent, int id) throws JSONException{
-        if (alarmDate == null) {
+        if (replayed.length() == 0) {
             return;
         }
 
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        log("Setting alarm at " + sdf.format(alarmDate.getTime()) + "; id " + id);
-
-        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        PendingIntent sender = PendingIntent.getBroadcast(
-            context, id, intent,
-            Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_UPDATE_CURRENT
-        );
+        JSONObject o = new JSONObject();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmDate.getTimeInMillis(), sender);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            AlarmManager.AlarmClockInfo alarmClockInfo = new AlarmManager.AlarmClockInfo(alarmDate.getTimeInMillis(), sender);
-            alarmManager.setAlarmClock(alarmClockInfo, sender);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            alarmManager.setExact(AlarmManager.RTC_WAKEUP, alarmDate.getTimeInMillis(), sender);
-        } else {
-            alarmManager.set(AlarmManager.RTC_WAKEUP, alarmDate.getTimeInMillis(), sender);
+        try {
+            o.put("type", "replay");
+            o.put("events", replayed);
+            o.put("lastSeq", events.getLastSeq());
+            o.put("epoch", events.getEpoch());
+        } catch (JSONException e) {
+            e.printStackTrace();
         }
 
-        if (connectionCallbackContext != null) {
-            JSONObject o = new JSONObject();
-            o.put("type", "set");
-            o.put("alarm_type", type);
-            o.put("alarm_date", alarmDate.getTimeInMillis());
-
-            log("Alarm time in millis: " + alarmDate.getTimeInMillis());
+        log("Replaying " + replayed.length() + " events");
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, o);
-            pluginResult.setKeepCallback(true);
-            connectionCallbackContext.sendPluginResult(pluginResult);
-        }
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, o);
+        pluginResult.setKeepCallback(true);
+        connectionCallbackContext.sendPluginResult(pluginResult);
+        WakeupMetrics.increment(WakeupMetrics.EVENTS_REPLAYED, replayed.length());
     }
 
-    private static void cancelAlarms(Context context) {
-        JSONArray currentAlarms = getAlarmsFromPrefs(context);
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        int alarmsCount = prefs.getInt("alarms_count", 0);
-        int alarmListSize = 1 + 7 + alarmsCount;
-        int[] currentAlarmsId = new int[alarmListSize];
+    public static boolean isConnectionCallbackSet() {
+        return connectionCallbackContext != null;
+    }
 
-        // id old one time usage
-        currentAlarmsId[0] = ID_ONETIME_OFFSET;
+    public static void setAlarmsFromPrefs(Context context) {
+        log("Setting alarms from prefs");
 
-        // ids old daily list (1 .. 7)
-        for (int i = 1; i <= 7; i++) {
-            currentAlarmsId[i] = ID_DAYLIST_OFFSET + i - 1;
+        try {
+            WakeupScheduler.setAlarms(context);
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendErrorResult("Can't set the alarms: " + e.getMessage());
         }
+    }
 
-        // ids new format (8 ... N)
-        for (int i = 0; i < alarmsCount; i++) {
-            currentAlarmsId[8 + i] = ID_SEQUENTIAL_OFFSET + i;
+    /**
+     * Same as `setAlarmsFromPrefs`, but skips the alarms that are already armed
+     */
+    public static void reconcileAlarmsFromPrefs(Context context) {
+        try {
+            WakeupScheduler.reconcileAlarms(context);
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendErrorResult("Can't set the alarms: " + e.getMessage());
         }
+    }
 
-        log("Canceling alarms");
-
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        Intent intent;
-        PendingIntent sender;
-
-        for (int i = 0; i < alarmListSize; i++) {
-            log("Cancelling alarm id " + currentAlarmsId[i]);
-
-            intent = new Intent(context, WakeupReceiver.class);
-            sender = PendingIntent.getBroadcast(
-                context, currentAlarmsId[i], intent,
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_UPDATE_CURRENT
-            );
-            alarmManager.cancel(sender);
+    private static void saveOptionsToPrefs(Context context, JSONObject options) throws JSONException {
+        if (!options.has("streamingUrl") && !options.has("ringtone")) {
+            return;
         }
-    }
 
-    private static Calendar getOneTimeAlarmDate(JSONObject time) throws JSONException {
-        TimeZone defaultz = TimeZone.getDefault();
-        Calendar calendar = new GregorianCalendar(defaultz);
-        Calendar now = new GregorianCalendar(defaultz);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
 
-        now.setTime(new Date());
-        calendar.setTime(new Date());
+        if (options.has("streamingUrl")) {
+            editor.putString("alarms_streaming_url", options.getString("streamingUrl"));
+        } else {
+            editor.remove("alarms_streaming_url");
+        }
 
-        int hour = (time.has("hour")) ? time.getInt("hour") : -1;
-        int minute = (time.has("minute")) ? time.getInt("minute") : 0;
+        if (options.has("streamingOnlyWifi")) {
+            editor.putBoolean("alarms_streaming_only_wifi", options.getBoolean("streamingOnlyWifi"));
+        } else {
+            editor.remove("alarms_streaming_only_wifi");
+        }
 
-        if (hour >= 0) {
-            calendar.set(Calendar.HOUR_OF_DAY, hour);
-            calendar.set(Calendar.MINUTE, minute);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND,0);
+        if (options.has("streamingPreroll")) {
+            int preroll = Math.max(0, Math.min(WakeupStartService.MAX_PREROLL_SECONDS, options.getInt("streamingPreroll")));
+            editor.putInt("alarms_streaming_preroll", preroll);
+        } else {
+            editor.remove("alarms_streaming_preroll");
+        }
 
-            if (calendar.before(now)) {
-                calendar.set(Calendar.DATE, calendar.get(Calendar.DATE) + 1);
-            }
+        if (options.has("streamingPrerollMaxBytes")) {
+            editor.putInt("alarms_streaming_preroll_max_bytes", Math.max(0, options.getInt("streamingPrerollMaxBytes")));
         } else {
-            calendar = null;
+            editor.remove("alarms_streaming_preroll_max_bytes");
         }
 
-        return calendar;
-    }
+        if (options.has("streamingFormat")) {
+            String format = options.getString("streamingFormat");
 
-    private static Calendar getAlarmDate(JSONObject time, int dayOfWeek) throws JSONException {
-        TimeZone defaultz = TimeZone.getDefault();
-        Calendar calendar = new GregorianCalendar(defaultz);
-        Calendar now = new GregorianCalendar(defaultz);
-        now.setTime(new Date());
-        calendar.setTime(new Date());
-
-        int hour = (time.has("hour")) ? time.getInt("hour") : -1;
-        int minute = (time.has("minute")) ? time.getInt("minute") : 0;
-
-        if (hour >= 0) {
-            calendar.set(Calendar.HOUR_OF_DAY, hour);
-            calendar.set(Calendar.MINUTE, minute);
-            calendar.set(Calendar.SECOND, 0);
-            calendar.set(Calendar.MILLISECOND,0);
-
-            int currentDayOfWeek = calendar.get(Calendar.DAY_OF_WEEK); // 1-7 = Sunday-Saturday
-            currentDayOfWeek--; // make zero-based
-
-            // add number of days until 'dayOfWeek' occurs
-            int daysUntilAlarm = 0;
-
-            if (currentDayOfWeek > dayOfWeek) {
-                // currentDayOfWeek=thursday (4); alarm=monday (1) -- add 4 days
-                daysUntilAlarm = (6 - currentDayOfWeek) + dayOfWeek + 1; // (days until the end of week) + dayOfWeek + 1
-            } else if (currentDayOfWeek < dayOfWeek) {
-                // example: currentDayOfWeek=monday (1); dayOfWeek=thursday (4) -- add three days
-                daysUntilAlarm = dayOfWeek - currentDayOfWeek;
-            } else {
-                if (now.after(calendar)) {
-                    daysUntilAlarm = 7;
-                } else {
-                    daysUntilAlarm = 0;
-                }
+            if (!WakeupStreamType.isFormat(format)) {
+                throw new JSONException("invalid streamingFormat: " + format);
             }
 
-            calendar.set(Calendar.DATE, now.get(Calendar.DATE) + daysUntilAlarm);
+            editor.putString("alarms_streaming_format", format);
         } else {
-            calendar = null;
+            editor.remove("alarms_streaming_format");
         }
 
-        return calendar;
-    }
-
-    private static Calendar getTimeFromNow(JSONObject time) throws JSONException {
-        TimeZone defaultz = TimeZone.getDefault();
-        Calendar calendar = new GregorianCalendar(defaultz);
-        calendar.setTime(new Date());
-
-        int seconds = (time.has("seconds")) ? time.getInt("seconds") : -1;
-
-        if (seconds >= 0) {
-            calendar.add(Calendar.SECOND, seconds);
+        if (options.has("streamingTimeout")) {
+            editor.putInt("alarms_streaming_timeout", Math.max(0, options.getInt("streamingTimeout")));
         } else {
-            calendar = null;
+            editor.remove("alarms_streaming_timeout");
         }
 
-        return calendar;
-    }
-
-    private static void saveAlarmsToPrefs(Context context, JSONArray alarms) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString("alarms", alarms.toString());
-        editor.apply();
-    }
-
-    private static void saveOptionsToPrefs(Context context, JSONObject options) throws JSONException {
-        if (!options.has("streamingUrl") && !options.has("ringtone")) {
-            return;
+        if (options.has("streamingTakeover")) {
+            editor.putBoolean("alarms_streaming_takeover", options.getBoolean("streamingTakeover"));
+        } else {
+            editor.remove("alarms_streaming_takeover");
         }
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        SharedPreferences.Editor editor = prefs.edit();
-
-        if (options.has("streamingUrl")) {
-            editor.putString("alarms_streaming_url", options.getString("streamingUrl"));
+        if (options.has("streamingCacheMaxBytes")) {
+            long maxBytes = Math.max(0, Math.min(WakeupStreamCache.MAX_CACHE_BYTES, options.getLong("streamingCacheMaxBytes")));
+            editor.putInt("alarms_streaming_cache_max_bytes", (int) maxBytes);
         } else {
-            editor.remove("alarms_streaming_url");
+            editor.remove("alarms_streaming_cache_max_bytes");
         }
 
-        if (options.has("streamingOnlyWifi")) {
-            editor.putBoolean("alarms_streaming_only_wifi", options.getBoolean("streamingOnlyWifi"));
+        if (options.has("streamingCacheSeconds")) {
+            editor.putInt("alarms_streaming_cache_seconds", Math.max(1, options.getInt("streamingCacheSeconds")));
         } else {
-            editor.remove("alarms_streaming_only_wifi");
+            editor.remove("alarms_streaming_cache_seconds");
         }
 
         if (options.has("ringtone")) {
@@ -642,6 +764,12 @@ public class WakeupPlugin extends CordovaPlugin {
             editor.remove("alarms_ringtone");
         }
 
+        if (options.has("ringtoneLowLatency")) {
+            editor.putBoolean("alarms_ringtone_low_latency", options.getBoolean("ringtoneLowLatency"));
+        } else {
+            editor.remove("alarms_ringtone_low_latency");
+        }
+
         if (options.has("volume")) {
             editor.putInt("alarms_volume", options.getInt("volume"));
         } else {
@@ -654,6 +782,12 @@ public class WakeupPlugin extends CordovaPlugin {
             editor.remove("alarms_stream_type");
         }
 
+        if (options.has("autoStop")) {
+            editor.putInt("alarms_auto_stop", Math.max(1, options.getInt("autoStop")));
+        } else {
+            editor.remove("alarms_auto_stop");
+        }
+
         if (options.has("notificationText")) {
             editor.putString("alarms_notification_text", options.getString("notificationText"));
         } else {
@@ -663,6 +797,21 @@ public class WakeupPlugin extends CordovaPlugin {
         editor.apply();
     }
 
+    private interface ActionHandler {
+        void run(JSONArray args, CallbackContext callbackContext) throws Exception;
+    }
+
+    private static class Action {
+        // null for the cheap actions, that run on the bridge thread
+        final String lane;
+        final ActionHandler handler;
+
+        Action(String lane, ActionHandler handler) {
+            this.lane = lane;
+            this.handler = handler;
+        }
+    }
+
     private static void log(String log) {
         Log.d(LOG_TAG, log);
     }
@@ -2,65 +2,213 @@ package com.eltonfaust.wakeupplugin;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.annotation.SuppressLint;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+/**
+ * Handles the alarm fire: the audio service is started right away on the main thread,
+ * everything else (activity launch, rescheduling and event delivery) runs on a background thread
+ * while the broadcast is kept alive with `goAsync`, up to `DEADLINE_MS`
+ */
 public class WakeupReceiver extends BroadcastReceiver {
 
     private static final String LOG_TAG = "WakeupReceiver";
 
+    // the system kills a receiver that holds the broadcast for 10 seconds, finish it before that
+    private static final long DEADLINE_MS = 8000;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
     @SuppressLint({"SimpleDateFormat", "NewApi"})
     @Override
     public void onReceive(Context context, Intent intent) {
-        long now = new Date().getTime();
+        final long startTime = SystemClock.elapsedRealtime();
+        final long now = new Date().getTime();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
         log("Wakeuptimer expired at " + sdf.format(now));
 
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        final Context appContext = context.getApplicationContext();
 
-        Bundle extrasBundle = intent.getExtras();
-        String extras = null;
+        if (intent.getBooleanExtra("preroll", false)) {
+            this.startPreroll(appContext, intent.getLongExtra("fireAt", 0));
+            return;
+        }
+
+        long fireAt = intent.getLongExtra("fireAt", 0);
 
-        if (extrasBundle != null && extrasBundle.get("extra") != null) {
-            extras = extrasBundle.get("extra").toString();
+        // alarms armed by previous versions don't tell when they were due
+        if (fireAt > 0) {
+            WakeupMetrics.record(WakeupMetrics.FIRE_DELAY, now - fireAt);
         }
 
+        final Bundle extrasBundle = intent.getExtras();
+        final boolean wakeup = intent.getBooleanExtra("wakeup", true);
+        final boolean hasAlarmId = extrasBundle != null && extrasBundle.containsKey("alarmId");
+        final int alarmId = hasAlarmId ? extrasBundle.getInt("alarmId") : -1;
+        // only alarms armed by previous versions carry the payload on the intent
+        final String legacyExtras = extrasBundle != null && extrasBundle.get("extra") != null ? extrasBundle.get("extra").toString() : null;
+
+        // opened on background while the service starts
+        WakeupRingtoneCache.preload(appContext);
+        WakeupStreamCache.preload(appContext);
+        this.startService(appContext, alarmId, legacyExtras);
+        WakeupDiagnostics.record("receiver_service", SystemClock.elapsedRealtime() - startTime);
+
+        final PendingResult pendingResult = this.goAsync();
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final Handler handler = new Handler(Looper.getMainLooper());
+
+        // release the broadcast on the deadline, even if the background work is stuck
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                if (finished.compareAndSet(false, true)) {
+                    log("Receiver deadline reached, releasing the broadcast");
+                    WakeupDiagnostics.record("receiver_deadline", SystemClock.elapsedRealtime() - startTime);
+                    pendingResult.finish();
+                }
+            }
+        };
+
+        handler.postDelayed(deadline, DEADLINE_MS);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long stageTime = SystemClock.elapsedRealtime();
+                    WakeupAlarmStore store = WakeupAlarmStore.getInstance(appContext);
+                    String payload = legacyExtras;
+
+                    if (payload == null && hasAlarmId) {
+                        // served from the store cache on repeated fires
+                        payload = store.getExtra(alarmId);
+                    }
+
+                    stageTime = recordStage("receiver_payload", stageTime);
+
+                    startActivity(appContext, payload, wakeup, now);
+                    stageTime = recordStage("receiver_activity", stageTime);
+
+                    List<Integer> dueAlarms = null;
+
+                    if (hasAlarmId) {
+                        // reschedule the fired alarm, in single slot mode also any other alarm due at the same time
+                        dueAlarms = WakeupScheduler.onAlarmFired(appContext, alarmId, extrasBundle.getInt("slot"));
+                    } else if (WakeupScheduler.hasLegacyAlarms(appContext)) {
+                        // armed by a previous version, that rescheduled it here, arm the migrated alarms instead
+                        log("Legacy alarm fired, arming the migrated alarms");
+                        WakeupScheduler.reconcileAlarms(appContext);
+                    }
+
+                    stageTime = recordStage("receiver_reschedule", stageTime);
+
+                    WakeupPlugin.sendWakeupResult(payload);
+
+                    if (dueAlarms != null) {
+                        for (int dueAlarmId : dueAlarms) {
+                            WakeupPlugin.sendWakeupResult(store.getExtra(dueAlarmId));
+                        }
+                    }
+
+                    recordStage("receiver_events", stageTime);
+                } catch (Exception e) {
+                    log("Receiver background work failed: " + e.getMessage());
+                    e.printStackTrace();
+                    WakeupPlugin.sendErrorResult("Alarm fire handling failed: " + e.getMessage());
+                } finally {
+                    long duration = SystemClock.elapsedRealtime() - startTime;
+                    WakeupDiagnostics.record("receiver_total", duration);
+                    WakeupDiagnostics.save(appContext);
+                    WakeupMetrics.record(WakeupMetrics.RECEIVER_HANDLING, duration);
+                    WakeupMetrics.save(appContext);
+                    handler.removeCallbacks(deadline);
+
+                    if (finished.compareAndSet(false, true)) {
+                        pendingResult.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private void startService(Context context, int alarmId, String extras) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+
         // check if some ringtone is configured
         if (
-            preferences.getString("alarms_streaming_url", null) != null
-                || preferences.getString("alarms_ringtone", null) != null
+            preferences.getString("alarms_streaming_url", null) == null
+                && preferences.getString("alarms_ringtone", null) == null
         ) {
-            log("Launching service for wakeup fallback");
-            Intent serviceIntent = new Intent(context, WakeupStartService.class);
+            log("Can't lauch wakeup fallback service, not configured");
+            return;
+        }
 
-            if (extras != null) {
-                serviceIntent.putExtra("extra", extras);
-            }
+        log("Launching service for wakeup fallback");
+        Intent serviceIntent = new Intent(context, WakeupStartService.class);
+
+        if (extras != null) {
+            serviceIntent.putExtra("extra", extras);
+        } else if (alarmId != -1) {
+            serviceIntent.putExtra("alarmId", alarmId);
+        }
 
-            serviceIntent.putExtra("wakeup", true);
+        serviceIntent.putExtra("wakeup", true);
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                context.startForegroundService(serviceIntent);
-            } else {
-                context.startService(serviceIntent);
-            }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(serviceIntent);
         } else {
-            log("Can't lauch wakeup fallback service, not configured");
+            context.startService(serviceIntent);
         }
+    }
 
+    /**
+     * Start the service in the warming state, buffering the stream ahead of the alarm at `fireAt`
+     */
+    private void startPreroll(Context context, long fireAt) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        if (preferences.getString("alarms_streaming_url", null) == null) {
+            log("Can't warm up the stream, not configured");
+            return;
+        }
+
+        log("Launching service for the stream pre-roll");
+        Intent serviceIntent = new Intent(context, WakeupStartService.class);
+        serviceIntent.putExtra("preroll", true);
+        serviceIntent.putExtra("fireAt", fireAt);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(serviceIntent);
+        } else {
+            context.startService(serviceIntent);
+        }
+    }
+
+    private static void startActivity(Context context, String extras, boolean wakeup, long triggerAt) {
         String packageName = context.getPackageName();
         Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
+
+        if (launchIntent == null || launchIntent.getComponent() == null) {
+            log("Can't find the launch activity");
+            return;
+        }
+
         String className = launchIntent.getComponent().getClassName();
         log("Launching activity for class " + className);
 
@@ -70,8 +218,8 @@ public class WakeupReceiver extends BroadcastReceiver {
             Intent activityIntent = new Intent(context, c);
 
             activityIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            activityIntent.putExtra("wakeup", intent.getBooleanExtra("wakeup", true));
-            activityIntent.putExtra("triggerAt", now);
+            activityIntent.putExtra("wakeup", wakeup);
+            activityIntent.putExtra("triggerAt", triggerAt);
 
             if (extras != null) {
                 activityIntent.putExtra("extra", extras);
@@ -81,42 +229,15 @@ public class WakeupReceiver extends BroadcastReceiver {
         } catch (ClassNotFoundException e) {
             log("Can't initialize activity class, shuting down service");
         }
+    }
 
-        WakeupPlugin.sendWakeupResult(extras);
-
-        if (extrasBundle != null && extrasBundle.getString("type") != null && extrasBundle.getString("type").equals("daylist")) {
-            // repeat in one week
-            Date next = new Date(new Date().getTime() + (7 * 24 * 60 * 60 * 1000));
-            log("Resetting alarm at " + sdf.format(next));
-
-            Intent reschedule = new Intent(context, WakeupReceiver.class);
-
-            if (extras != null) {
-                reschedule.putExtra("extra", intent.getExtras().get("extra").toString());
-            }
-
-            reschedule.putExtra("day", WakeupPlugin.daysOfWeek.get(intent.getExtras().get("day")));
-
-            PendingIntent sender = PendingIntent.getBroadcast(
-                context, 19999 + WakeupPlugin.daysOfWeek.get(intent.getExtras().get("day")), intent,
-                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_UPDATE_CURRENT
-            );
-            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next.getTime(), sender);
-            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                AlarmManager.AlarmClockInfo alarmClockInfo = new AlarmManager.AlarmClockInfo(next.getTime(), sender);
-                alarmManager.setAlarmClock(alarmClockInfo, sender);
-            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                alarmManager.setExact(AlarmManager.RTC_WAKEUP, next.getTime(), sender);
-            } else {
-                alarmManager.set(AlarmManager.RTC_WAKEUP, next.getTime(), sender);
-            }
-        }
+    private static long recordStage(String name, long stageStart) {
+        long time = SystemClock.elapsedRealtime();
+        WakeupDiagnostics.record(name, time - stageStart);
+        return time;
     }
 
-    private void log(String log) {
+    private static void log(String log) {
         Log.d(LOG_TAG, log);
     }
 }
@@ -0,0 +1,398 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * The configured ringtone decoded once to 16 bit PCM, on a file of the app cache dir, so it can be played
+ * right away by `WakeupPcmPlayer` without decoding it on every alarm
+ *
+ * The file starts with a header (magic, version, sample rate, channel count, last modified time and uri of the ringtone),
+ * it's only used while the uri and the last modified time match; ringtones without a known last modified time are not decoded
+ */
+public class WakeupRingtoneCache {
+    private static final String LOG_TAG = "WakeupRingtoneCache";
+
+    private static final String FILE_NAME = "wakeup_ringtone.pcm";
+
+    private static final int MAGIC = 0x57525043;
+    private static final int VERSION = 1;
+
+    // position of the sample rate and channel count on the header, written once the decoder tells them
+    private static final int FORMAT_OFFSET = 8;
+
+    // longest ringtone kept, about a minute of 44.1kHz stereo, longer ones are cut
+    public static final int MAX_PCM_BYTES = 10 * 1024 * 1024;
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
+    // opened ahead of the alarm by `preload`, taken once by the player
+    private static Pcm preloaded = null;
+    private static String preloadedUrl = null;
+
+    /**
+     * A decoded ringtone, the data is mapped from the cache file
+     */
+    public static class Pcm {
+        public final int sampleRate;
+        public final int channelCount;
+        public final ByteBuffer data;
+
+        private Pcm(int sampleRate, int channelCount, ByteBuffer data) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Decode the configured ringtone on background if the low latency engine is enabled and the file is stale,
+     * drops the file once disabled
+     */
+    public static void update(Context context) {
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        final String ringtoneUrl = prefs.getString("alarms_ringtone", null);
+        final boolean enabled = ringtoneUrl != null
+            && prefs.getBoolean("alarms_ringtone_low_latency", false)
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = getFile(appContext);
+
+                if (!enabled) {
+                    file.delete();
+                    return;
+                }
+
+                long modified = getLastModified(appContext, Uri.parse(ringtoneUrl));
+
+                if (modified == -1) {
+                    log("Ringtone last modified time unknown, not decoded");
+                    file.delete();
+                    return;
+                }
+
+                if (open(appContext, ringtoneUrl) != null) {
+                    return;
+                }
+
+                long startTime = SystemClock.elapsedRealtime();
+
+                try {
+                    decode(appContext, ringtoneUrl, modified);
+                    WakeupDiagnostics.record("ringtone_decode", SystemClock.elapsedRealtime() - startTime);
+                } catch (Exception e) {
+                    // played by the media player
+                    log("Can't decode the ringtone: " + e.getMessage());
+                    WakeupDiagnostics.recordValue("ringtone_decode_error", String.valueOf(e.getMessage()));
+                    file.delete();
+                }
+
+                WakeupDiagnostics.save(appContext);
+            }
+        });
+    }
+
+    /**
+     * Open the decoded ringtone on background, so it's ready once the alarm plays it, see `take`
+     */
+    public static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        final String ringtoneUrl = prefs.getString("alarms_ringtone", null);
+
+        if (
+            ringtoneUrl == null
+                || !prefs.getBoolean("alarms_ringtone_low_latency", false)
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+        ) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Pcm pcm = open(appContext, ringtoneUrl);
+
+                synchronized (WakeupRingtoneCache.class) {
+                    preloaded = pcm;
+                    preloadedUrl = ringtoneUrl;
+                }
+            }
+        });
+    }
+
+    /**
+     * The ringtone opened by `preload`, null if not opened yet, not decoded or stale
+     */
+    public static synchronized Pcm take(String ringtoneUrl) {
+        Pcm pcm = ringtoneUrl.equals(preloadedUrl) ? preloaded : null;
+
+        preloaded = null;
+        preloadedUrl = null;
+
+        return pcm;
+    }
+
+    /**
+     * The decoded ringtone, null if not decoded or stale
+     */
+    private static Pcm open(Context context, String ringtoneUrl) {
+        File file = getFile(context);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    return null;
+                }
+
+                int sampleRate = input.readInt();
+                int channelCount = input.readInt();
+                long modified = input.readLong();
+                String uri = input.readUTF();
+
+                if (!uri.equals(ringtoneUrl) || modified != getLastModified(context, Uri.parse(ringtoneUrl))) {
+                    log("Decoded ringtone is stale");
+                    return null;
+                }
+
+                long offset = input.getFilePointer();
+
+                // the mapping stays valid once the file is closed
+                ByteBuffer data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, input.length() - offset);
+
+                return new Pcm(sampleRate, channelCount, data);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            log("Can't open the decoded ringtone: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static void decode(Context context, String ringtoneUrl, long modified) throws IOException {
+        File file = getFile(context);
+        File tempFile = new File(file.getPath() + ".tmp");
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        long written = 0;
+
+        log("Decoding the ringtone " + ringtoneUrl);
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            extractor.setDataSource(context, Uri.parse(ringtoneUrl), null);
+
+            MediaFormat format = null;
+
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                    break;
+                }
+            }
+
+            if (format == null) {
+                throw new IOException("no audio track");
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(sampleRate);
+            output.writeInt(channelCount);
+            output.writeLong(modified);
+            output.writeUTF(ringtoneUrl);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            boolean inputDone = false;
+            boolean outputDone = false;
+
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(inputIndex), 0);
+
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+                    if (
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                            && outputFormat.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                            && outputFormat.getInteger(MediaFormat.KEY_PCM_ENCODING) != AudioFormat.ENCODING_PCM_16BIT
+                    ) {
+                        throw new IOException("unsupported PCM encoding");
+                    }
+                } else if (outputIndex >= 0) {
+                    ByteBuffer buffer = codec.getOutputBuffer(outputIndex);
+                    int size = (int) Math.min(info.size, MAX_PCM_BYTES - written);
+
+                    // cut on a whole frame
+                    size -= size % (channelCount * 2);
+
+                    if (chunk.length < size) {
+                        chunk = new byte[size];
+                    }
+
+                    buffer.position(info.offset);
+                    buffer.get(chunk, 0, size);
+                    output.write(chunk, 0, size);
+                    written += size;
+
+                    codec.releaseOutputBuffer(outputIndex, false);
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || size < info.size) {
+                        outputDone = true;
+                    }
+                }
+            }
+
+            output.close();
+
+            if (written == 0) {
+                throw new IOException("no audio decoded");
+            }
+
+            // the decoder may tell another format once started
+            RandomAccessFile header = new RandomAccessFile(tempFile, "rw");
+
+            try {
+                header.seek(FORMAT_OFFSET);
+                header.writeInt(sampleRate);
+                header.writeInt(channelCount);
+            } finally {
+                header.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("can't replace " + file.getPath());
+            }
+
+            log("Ringtone decoded, " + written + " bytes at " + sampleRate + "Hz, " + channelCount + " channels");
+        } finally {
+            output.close();
+            extractor.release();
+            tempFile.delete();
+
+            if (codec != null) {
+                codec.release();
+            }
+        }
+    }
+
+    /**
+     * Last modified time of the ringtone, -1 if unknown
+     */
+    private static long getLastModified(Context context, Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            File file = new File(uri.getPath());
+            return file.exists() ? file.lastModified() : -1;
+        }
+
+        if (!"content".equals(uri.getScheme())) {
+            return -1;
+        }
+
+        Cursor cursor = null;
+
+        try {
+            cursor = context.getContentResolver().query(uri, null, null, null, null);
+
+            if (cursor == null || !cursor.moveToFirst()) {
+                return -1;
+            }
+
+            int index = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+
+            if (index != -1 && !cursor.isNull(index)) {
+                return cursor.getLong(index);
+            }
+
+            index = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+
+            if (index != -1 && !cursor.isNull(index)) {
+                return cursor.getLong(index);
+            }
+        } catch (Exception e) {
+            log("Can't query the ringtone: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return -1;
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
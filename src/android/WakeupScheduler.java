@@ -0,0 +1,415 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Arms the alarms saved on the `WakeupAlarmStore`
+ *
+ * The scheduling itself is done by the `WakeupSchedulerCore`, this class binds it to the device:
+ * the system clock, the AlarmManager, the plugin preferences and the events sent to the app
+ */
+public class WakeupScheduler {
+    private static final String LOG_TAG = "WakeupScheduler";
+
+    public static final String MODE_PER_ALARM = WakeupSchedulerCore.MODE_PER_ALARM;
+    public static final String MODE_SINGLE_SLOT = WakeupSchedulerCore.MODE_SINGLE_SLOT;
+
+    private static WakeupSchedulerCore core;
+
+    private static WakeupAlarmQueue queue;
+
+    public static synchronized WakeupSchedulerCore getCore(Context context) {
+        if (core == null) {
+            Context appContext = context.getApplicationContext();
+
+            core = new WakeupSchedulerCore(
+                new SystemClockSource(),
+                new AlarmManagerBackend(appContext),
+                new PreferencesStore(appContext),
+                new PluginListener()
+            );
+        }
+
+        return core;
+    }
+
+    /**
+     * The queue with the next fire time of every armed alarm slot, loaded once
+     */
+    public static synchronized WakeupAlarmQueue getQueue(Context context) {
+        if (queue == null) {
+            File file = new File(context.getFilesDir(), WakeupAlarmQueue.FILE_NAME);
+            WakeupAlarmQueue loaded = new WakeupAlarmQueue(file);
+
+            if (file.exists()) {
+                try {
+                    loaded.load();
+                } catch (IOException e) {
+                    log("Can't read the alarm queue, discarding it: " + e.getMessage());
+                    loaded.clear();
+                }
+            }
+
+            queue = loaded;
+        }
+
+        return queue;
+    }
+
+    public static String getSchedulingMode(Context context) {
+        return getCore(context).getSchedulingMode();
+    }
+
+    public static void setSchedulingMode(Context context, String mode) throws IOException {
+        getCore(context).setSchedulingMode(mode);
+    }
+
+    /**
+     * Arm all alarms from the store, rebuilding the queue
+     */
+    public static void setAlarms(Context context) throws IOException {
+        getCore(context).setAlarms();
+    }
+
+    /**
+     * See `WakeupSchedulerCore.beginRestore`
+     */
+    public static int[] beginRestore(Context context) throws IOException {
+        return getCore(context).beginRestore();
+    }
+
+    public static int restoreAlarmsChunk(Context context, int[] keys, int from, long budgetMs) {
+        return getCore(context).restoreAlarmsChunk(keys, from, budgetMs);
+    }
+
+    public static void finishRestore(Context context, boolean completed) {
+        getCore(context).finishRestore(completed);
+    }
+
+    /**
+     * Make sure the saved alarms are armed, see `WakeupSchedulerCore.reconcileAlarms`
+     */
+    public static void reconcileAlarms(Context context) throws IOException {
+        getCore(context).reconcileAlarms();
+    }
+
+    /**
+     * Whether alarms armed by previous versions may still be registered
+     */
+    public static boolean hasLegacyAlarms(Context context) {
+        return getCore(context).hasLegacyAlarms();
+    }
+
+    public static void replaceAlarms(Context context, JSONArray alarms) throws JSONException, IOException {
+        getCore(context).replaceAlarms(alarms);
+    }
+
+    public static void addAlarm(Context context, JSONObject alarmOptions) throws JSONException, IOException {
+        getCore(context).addAlarm(alarmOptions);
+    }
+
+    public static void updateAlarm(Context context, JSONObject alarmOptions) throws JSONException, IOException {
+        getCore(context).updateAlarm(alarmOptions);
+    }
+
+    public static void removeAlarm(Context context, int alarmId) throws IOException {
+        getCore(context).removeAlarm(alarmId);
+    }
+
+    /**
+     * Reschedule the alarms handled by a fire, returns the ids of the other alarms that were due with it
+     */
+    public static List<Integer> onAlarmFired(Context context, int alarmId, int slot) {
+        return getCore(context).onAlarmFired(alarmId, slot);
+    }
+
+    /**
+     * Rearm the stream pre-roll after its options changed
+     */
+    public static void updatePreroll(Context context) {
+        getCore(context).updatePreroll();
+    }
+
+    private static class SystemClockSource implements WakeupClock {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+    }
+
+    /**
+     * Registers the alarms on the AlarmManager, as broadcasts to the `WakeupReceiver`
+     */
+    private static class AlarmManagerBackend implements WakeupAlarmBackend {
+        private final Context context;
+
+        AlarmManagerBackend(Context context) {
+            this.context = context;
+        }
+
+        /**
+         * The intent only carries the ids and the time it's due, the receiver reads the payload from the store
+         */
+        @Override
+        public void set(int requestCode, long time, int alarmId, int slot) {
+            Intent intent = new Intent(this.context, WakeupReceiver.class);
+            intent.putExtra("alarmId", alarmId);
+            intent.putExtra("slot", slot);
+            intent.putExtra("fireAt", time);
+
+            this.setNotification(intent, requestCode, time);
+        }
+
+        @Override
+        public void setPreroll(int requestCode, long time, long fireAt) {
+            Intent intent = new Intent(this.context, WakeupReceiver.class);
+            intent.putExtra("preroll", true);
+            intent.putExtra("fireAt", fireAt);
+
+            this.setNotification(intent, requestCode, time);
+        }
+
+        @Override
+        public void cancel(int requestCode) {
+            log("Cancelling alarm id " + requestCode);
+
+            AlarmManager alarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+            Intent intent = new Intent(this.context, WakeupReceiver.class);
+            PendingIntent sender = PendingIntent.getBroadcast(
+                this.context, requestCode, intent,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_UPDATE_CURRENT
+            );
+            alarmManager.cancel(sender);
+            sender.cancel();
+        }
+
+        @Override
+        public boolean isArmed(int requestCode) {
+            PendingIntent sender = PendingIntent.getBroadcast(
+                this.context, requestCode, new Intent(this.context, WakeupReceiver.class),
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_NO_CREATE
+            );
+
+            return sender != null;
+        }
+
+        @SuppressLint("NewApi")
+        @Override
+        public boolean canScheduleExactAlarms() {
+            AlarmManager alarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+            return Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU || alarmManager.canScheduleExactAlarms();
+        }
+
+        @Override
+        public void setRestoreOnBoot(boolean enabled) {
+            ComponentName receiver = new ComponentName(this.context, WakeupBootReceiver.class);
+            PackageManager pm = this.context.getPackageManager();
+            // the receiver is disabled on the manifest, so the default state is disabled
+            boolean currentlyEnabled = pm.getComponentEnabledSetting(receiver) == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+
+            if (enabled == currentlyEnabled) {
+                return;
+            }
+
+            if (enabled) {
+                log("Enabling WakeupBootReceiver");
+                pm.setComponentEnabledSetting(receiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
+            } else {
+                log("Disabling WakeupBootReceiver");
+                pm.setComponentEnabledSetting(receiver, PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
+            }
+        }
+
+        @SuppressLint({ "SimpleDateFormat", "NewApi" })
+        private void setNotification(Intent intent, int id, long alarmTime) {
+            AlarmManager alarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            log("Setting alarm at " + sdf.format(alarmTime) + "; id " + id);
+
+            intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+            PendingIntent sender = PendingIntent.getBroadcast(
+                this.context, id, intent,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE : PendingIntent.FLAG_UPDATE_CURRENT
+            );
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, alarmTime, sender);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                AlarmManager.AlarmClockInfo alarmClockInfo = new AlarmManager.AlarmClockInfo(alarmTime, sender);
+                alarmManager.setAlarmClock(alarmClockInfo, sender);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                alarmManager.setExact(AlarmManager.RTC_WAKEUP, alarmTime, sender);
+            } else {
+                alarmManager.set(AlarmManager.RTC_WAKEUP, alarmTime, sender);
+            }
+        }
+    }
+
+    /**
+     * The alarms from the `WakeupAlarmStore`, the scheduler settings from the plugin preferences
+     */
+    private static class PreferencesStore implements WakeupSchedulerStore {
+        private final Context context;
+
+        private final WakeupAlarmStore alarms;
+
+        PreferencesStore(Context context) {
+            this.context = context;
+            this.alarms = WakeupAlarmStore.getInstance(context);
+        }
+
+        @Override
+        public int size() {
+            return this.alarms.size();
+        }
+
+        @Override
+        public WakeupAlarmRule get(int position) {
+            return this.alarms.get(position);
+        }
+
+        @Override
+        public WakeupAlarmRule find(int id) {
+            return this.alarms.find(id);
+        }
+
+        @Override
+        public WakeupAlarmRule[] toArray() {
+            return this.alarms.toArray();
+        }
+
+        @Override
+        public void put(WakeupAlarmRule rule, String extra) {
+            this.alarms.put(rule, extra);
+        }
+
+        @Override
+        public boolean remove(int id) {
+            return this.alarms.remove(id);
+        }
+
+        @Override
+        public void replaceAll(JSONArray alarms, long now, TimeZone zone) throws JSONException {
+            this.alarms.replaceAll(alarms, now, zone);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            this.alarms.commit();
+        }
+
+        @Override
+        public WakeupAlarmQueue getQueue() {
+            return WakeupScheduler.getQueue(this.context);
+        }
+
+        @Override
+        public String getSchedulingMode() {
+            return this.getPreferences().getString("alarms_scheduling_mode", MODE_PER_ALARM);
+        }
+
+        @Override
+        public void setSchedulingMode(String mode) {
+            this.getPreferences().edit().putString("alarms_scheduling_mode", mode).commit();
+        }
+
+        @Override
+        public int getLegacyAlarmCount() {
+            SharedPreferences prefs = this.getPreferences();
+            return prefs.contains("alarms_count") ? prefs.getInt("alarms_count", 0) : -1;
+        }
+
+        @Override
+        public void clearLegacyAlarmCount() {
+            this.getPreferences().edit().remove("alarms_count").apply();
+        }
+
+        @Override
+        public long getFingerprint() {
+            return this.getPreferences().getLong("alarms_fingerprint", 0);
+        }
+
+        @Override
+        public long getArmedAt() {
+            return this.getPreferences().getLong("alarms_armed_at", 0);
+        }
+
+        @Override
+        public void saveFingerprint(long fingerprint, long armedAt) {
+            this.getPreferences().edit()
+                .putLong("alarms_fingerprint", fingerprint)
+                .putLong("alarms_armed_at", armedAt)
+                .apply();
+        }
+
+        /**
+         * `alarms_streaming_preroll`, only with a stream configured
+         */
+        @Override
+        public int getPrerollSeconds() {
+            SharedPreferences prefs = this.getPreferences();
+            return prefs.getString("alarms_streaming_url", null) != null ? prefs.getInt("alarms_streaming_preroll", 0) : 0;
+        }
+
+        private SharedPreferences getPreferences() {
+            return PreferenceManager.getDefaultSharedPreferences(this.context);
+        }
+    }
+
+    private static class PluginListener implements WakeupSchedulerCore.Listener {
+        @Override
+        public boolean isScheduledEventEnabled() {
+            return WakeupPlugin.isScheduledEventEnabled();
+        }
+
+        @Override
+        public void onScheduled(JSONArray alarms) {
+            WakeupPlugin.sendScheduledResult(alarms);
+        }
+
+        @Override
+        public void onMissed(JSONArray alarms) {
+            WakeupPlugin.sendMissedResult(alarms);
+        }
+
+        @Override
+        public void log(String log) {
+            WakeupScheduler.log(log);
+        }
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
@@ -0,0 +1,720 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Scheduling logic of the alarms saved on the store, without any Android dependency
+ *
+ * The next fire time of every alarm slot is kept on the `WakeupAlarmQueue`, depending on the scheduling mode
+ * each slot is registered on the backend (per alarm mode), or only the queue head is (single slot mode);
+ * time, persistence and the alarm registration come from the given clock, store and backend
+ */
+public class WakeupSchedulerCore {
+    private static final int ID_DAYLIST_OFFSET = 10010;
+    private static final int ID_ONETIME_OFFSET = 10000;
+    private static final int ID_SEQUENTIAL_OFFSET = 10020;
+    private static final int ID_LEGACY_RESCHEDULE_OFFSET = 19999;
+    public static final int ID_PREROLL = 99998;
+    public static final int ID_SINGLE_SLOT = 99999;
+    private static final int ID_STABLE_OFFSET = 100000;
+
+    // alarms on the queue up to this time after the current one are handled by the same fire
+    private static final long DUE_TOLERANCE_MS = 1000;
+
+    public static final String MODE_PER_ALARM = "perAlarm";
+    public static final String MODE_SINGLE_SLOT = "singleSlot";
+
+    /**
+     * Receives what the scheduling reports to the app
+     */
+    public interface Listener {
+        boolean isScheduledEventEnabled();
+
+        /**
+         * Entries armed by an operation, as [{ alarmId, type, date }]
+         */
+        void onScheduled(JSONArray alarms);
+
+        /**
+         * Entries that should have fired while the device was off, as [{ alarmId, date }]
+         */
+        void onMissed(JSONArray alarms);
+
+        void log(String log);
+    }
+
+    private final WakeupClock clock;
+
+    private final WakeupAlarmBackend backend;
+
+    private final WakeupSchedulerStore store;
+
+    private final Listener listener;
+
+    // queue head currently registered on single slot mode
+    private int armedHeadKey = -1;
+    private long armedHeadTime = -1;
+
+    // time of the armed stream pre-roll, -2 if unknown
+    private long armedPrerollTime = -2;
+
+    // entries armed by the current operation, sent to the app as a single event once it's done
+    private JSONArray scheduledBatch = null;
+
+    public WakeupSchedulerCore(WakeupClock clock, WakeupAlarmBackend backend, WakeupSchedulerStore store, Listener listener) {
+        this.clock = clock;
+        this.backend = backend;
+        this.store = store;
+        this.listener = listener;
+    }
+
+    /**
+     * Request code of an alarm slot, derived only from the alarm id, so it never changes between calls
+     */
+    public static int getRequestCode(int alarmId, int slot) {
+        return ID_STABLE_OFFSET + alarmId * WakeupAlarmRule.SLOT_COUNT + slot;
+    }
+
+    public synchronized String getSchedulingMode() {
+        return this.store.getSchedulingMode();
+    }
+
+    public synchronized void setSchedulingMode(String mode) throws IOException {
+        if (!mode.equals(MODE_PER_ALARM) && !mode.equals(MODE_SINGLE_SLOT)) {
+            throw new IllegalArgumentException("invalid scheduling mode: " + mode);
+        }
+
+        if (mode.equals(this.store.getSchedulingMode())) {
+            return;
+        }
+
+        this.log("Changing scheduling mode to " + mode);
+
+        // cancel everything registered on the current mode before rearming
+        this.cancelAlarms(this.store.toArray());
+        this.store.setSchedulingMode(mode);
+
+        this.setAlarms();
+    }
+
+    /**
+     * Arm all alarms from the store, rebuilding the queue
+     */
+    public synchronized void setAlarms() throws IOException {
+        this.cancelLegacyAlarms();
+
+        WakeupAlarmQueue queue = this.store.getQueue();
+        int alarmsSize = this.store.size();
+
+        if (alarmsSize > 0 && !this.backend.canScheduleExactAlarms()) {
+            this.log("Can't set alarms, app can't schedule exact alarms");
+            return;
+        }
+
+        boolean singleSlot = this.isSingleSlot();
+        long now = this.clock.currentTimeMillis();
+        TimeZone zone = this.clock.getTimeZone();
+        queue.clear();
+
+        for (int i = 0; i < alarmsSize; i++) {
+            WakeupAlarmRule alarm = this.store.get(i);
+            this.armAlarm(alarm, alarm.getSlots(), singleSlot, now, zone);
+        }
+
+        queue.commit();
+
+        if (singleSlot) {
+            this.armHead(true);
+        }
+
+        this.armedPrerollTime = -2;
+        this.armPreroll();
+        this.sendScheduledBatch();
+        this.saveFingerprint();
+        this.backend.setRestoreOnBoot(alarmsSize > 0);
+    }
+
+    /**
+     * First step of the restore after a boot: rebuild the queue and report the alarms missed while the device was off,
+     * on single slot mode the head is armed and nothing is left, on per alarm mode returns the keys to register,
+     * soonest first, with `restoreAlarmsChunk`
+     */
+    public synchronized int[] beginRestore() throws IOException {
+        this.cancelLegacyAlarms();
+
+        WakeupAlarmQueue queue = this.store.getQueue();
+        long now = this.clock.currentTimeMillis();
+        TimeZone zone = this.clock.getTimeZone();
+
+        if (this.store.size() > 0 && !this.backend.canScheduleExactAlarms()) {
+            this.log("Can't restore alarms, app can't schedule exact alarms");
+            return new int[0];
+        }
+
+        this.reportMissed(now);
+
+        boolean singleSlot = this.isSingleSlot();
+        queue.clear();
+
+        for (int i = 0; i < this.store.size(); i++) {
+            WakeupAlarmRule alarm = this.store.get(i);
+            // only queue the slots, they are registered by time later
+            this.armAlarm(alarm, alarm.getSlots(), true, now, zone);
+        }
+
+        queue.commit();
+        this.sendScheduledBatch();
+
+        this.armedPrerollTime = -2;
+        this.armPreroll();
+
+        if (singleSlot) {
+            this.armHead(true);
+            return new int[0];
+        }
+
+        return queue.getKeysByTime();
+    }
+
+    /**
+     * Register the keys returned by `beginRestore` from the given position, until the time budget is over,
+     * returns the position of the next key to register
+     */
+    public synchronized int restoreAlarmsChunk(int[] keys, int from, long budgetMs) {
+        WakeupAlarmQueue queue = this.store.getQueue();
+        long deadline = this.clock.elapsedRealtime() + budgetMs;
+        int position = from;
+
+        while (position < keys.length && (position == from || this.clock.elapsedRealtime() < deadline)) {
+            int key = keys[position++];
+            long time = queue.getTime(key);
+
+            // changed after the restore started
+            if (time == -1) {
+                continue;
+            }
+
+            int alarmId = WakeupAlarmQueue.getAlarmId(key);
+            int slot = WakeupAlarmQueue.getSlot(key);
+            this.backend.set(getRequestCode(alarmId, slot), time, alarmId, slot);
+        }
+
+        return position;
+    }
+
+    /**
+     * Last step of the restore, once completed the armed set is saved, so `reconcileAlarms` doesn't need to arm it again
+     */
+    public synchronized void finishRestore(boolean completed) {
+        if (completed) {
+            this.saveFingerprint();
+        }
+
+        this.backend.setRestoreOnBoot(this.store.size() > 0);
+    }
+
+    /**
+     * Make sure the saved alarms are armed, rearming everything only if the schedule, time zone or mode changed
+     * since the last arm, or if the backend dropped the alarms (reboot, force stop),
+     * otherwise only the entries that should already have fired are rearmed
+     */
+    public synchronized void reconcileAlarms() throws IOException {
+        long now = this.clock.currentTimeMillis();
+        long bootTime = now - this.clock.elapsedRealtime();
+
+        if (
+            this.store.getLegacyAlarmCount() != -1
+                || this.store.getArmedAt() < bootTime
+                || this.store.getFingerprint() != this.getFingerprint()
+                || !this.isHeadArmed()
+        ) {
+            this.log("Armed alarms are outdated, rearming all");
+            this.setAlarms();
+            return;
+        }
+
+        WakeupAlarmQueue queue = this.store.getQueue();
+        boolean singleSlot = this.isSingleSlot();
+        TimeZone zone = this.clock.getTimeZone();
+        List<Integer> staleKeys = new ArrayList<Integer>();
+
+        while (!queue.isEmpty() && queue.peekTime() < now) {
+            staleKeys.add(queue.poll());
+        }
+
+        if (staleKeys.isEmpty()) {
+            this.log("Armed alarms are up to date");
+            return;
+        }
+
+        this.log("Rearming " + staleKeys.size() + " stale alarms");
+
+        for (int key : staleKeys) {
+            WakeupAlarmRule alarm = this.store.find(WakeupAlarmQueue.getAlarmId(key));
+
+            if (alarm != null) {
+                this.armAlarm(alarm, 1 << WakeupAlarmQueue.getSlot(key), singleSlot, now, zone);
+            }
+        }
+
+        this.commitQueue(singleSlot);
+    }
+
+    /**
+     * Whether alarms armed by previous versions, with position based ids, may still be registered
+     */
+    public synchronized boolean hasLegacyAlarms() {
+        return this.store.getLegacyAlarmCount() != -1;
+    }
+
+    /**
+     * Cancel all current alarms and replace them with the given list
+     */
+    public synchronized void replaceAlarms(JSONArray alarms) throws JSONException, IOException {
+        WakeupAlarmRule[] previous = this.store.toArray();
+
+        // an invalid list throws here, keeping the current alarms untouched
+        this.store.replaceAll(alarms, this.clock.currentTimeMillis(), this.clock.getTimeZone());
+
+        this.cancelAlarms(previous);
+        this.store.commit();
+        this.setAlarms();
+    }
+
+    public synchronized void addAlarm(JSONObject alarmOptions) throws JSONException, IOException {
+        if (!alarmOptions.has("id")) {
+            throw new JSONException("alarm missing id: " + alarmOptions.toString());
+        }
+
+        long now = this.clock.currentTimeMillis();
+        TimeZone zone = this.clock.getTimeZone();
+        WakeupAlarmRule alarm = WakeupAlarmRule.compile(0, -1, alarmOptions, now, zone);
+
+        if (this.store.find(alarm.id) != null) {
+            throw new IllegalArgumentException("alarm already exists: " + alarm.id);
+        }
+
+        String extra = WakeupAlarmRule.parseExtra(alarmOptions);
+        this.armMigratedAlarms();
+        boolean singleSlot = this.isSingleSlot();
+
+        this.store.put(alarm, extra);
+        this.store.commit();
+
+        this.armAlarm(alarm, alarm.getSlots(), singleSlot, now, zone);
+        this.commitQueue(singleSlot);
+        this.saveFingerprint();
+        this.backend.setRestoreOnBoot(true);
+    }
+
+    public synchronized void updateAlarm(JSONObject alarmOptions) throws JSONException, IOException {
+        if (!alarmOptions.has("id")) {
+            throw new JSONException("alarm missing id: " + alarmOptions.toString());
+        }
+
+        long now = this.clock.currentTimeMillis();
+        TimeZone zone = this.clock.getTimeZone();
+        WakeupAlarmRule alarm = WakeupAlarmRule.compile(0, -1, alarmOptions, now, zone);
+        WakeupAlarmRule current = this.store.find(alarm.id);
+
+        if (current == null) {
+            throw new IllegalArgumentException("alarm not found: " + alarm.id);
+        }
+
+        String extra = WakeupAlarmRule.parseExtra(alarmOptions);
+        this.armMigratedAlarms();
+        // the registered alarms only carry the alarm id, a payload change doesn't need to touch them
+        boolean changed = !alarm.hasSameSchedule(current);
+        boolean singleSlot = this.isSingleSlot();
+
+        this.store.put(alarm, extra);
+        this.store.commit();
+
+        int currentSlots = current.getSlots();
+        int slots = alarm.getSlots();
+
+        // only touch the slots that are no longer used, new ones, or all when the schedule changed
+        this.cancelAlarm(current, currentSlots & ~slots, singleSlot);
+        this.armAlarm(alarm, changed ? slots : slots & ~currentSlots, singleSlot, now, zone);
+
+        this.commitQueue(singleSlot);
+        this.saveFingerprint();
+    }
+
+    public synchronized void removeAlarm(int alarmId) throws IOException {
+        WakeupAlarmRule current = this.store.find(alarmId);
+
+        if (current == null) {
+            return;
+        }
+
+        this.armMigratedAlarms();
+        boolean singleSlot = this.isSingleSlot();
+
+        this.store.remove(alarmId);
+        this.store.commit();
+
+        this.cancelAlarm(current, current.getSlots(), singleSlot);
+        this.commitQueue(singleSlot);
+        this.saveFingerprint();
+
+        if (this.store.size() == 0) {
+            this.backend.setRestoreOnBoot(false);
+        }
+    }
+
+    /**
+     * Reschedule the alarms handled by a fire, returns the ids of the other alarms that were due with it
+     */
+    public synchronized List<Integer> onAlarmFired(int alarmId, int slot) {
+        List<Integer> dueAlarms = new ArrayList<Integer>();
+
+        try {
+            WakeupAlarmQueue queue = this.store.getQueue();
+            boolean singleSlot = this.isSingleSlot();
+            List<Integer> firedKeys = new ArrayList<Integer>();
+
+            firedKeys.add(WakeupAlarmQueue.getKey(alarmId, slot));
+
+            // occurrences up to this time are handled by the current fire
+            long dueTime = this.clock.currentTimeMillis() + DUE_TOLERANCE_MS;
+            TimeZone zone = this.clock.getTimeZone();
+
+            if (singleSlot) {
+                while (!queue.isEmpty() && queue.peekTime() <= dueTime) {
+                    int key = queue.poll();
+
+                    if (!firedKeys.contains(key)) {
+                        firedKeys.add(key);
+                        dueAlarms.add(WakeupAlarmQueue.getAlarmId(key));
+                    }
+                }
+
+                this.armedHeadKey = -1;
+            }
+
+            for (int key : firedKeys) {
+                WakeupAlarmRule alarm = this.store.find(WakeupAlarmQueue.getAlarmId(key));
+                queue.remove(key);
+
+                if (alarm != null && alarm.type != WakeupAlarmRule.TYPE_ONETIME) {
+                    // next occurrence of the week day or interval, skipping the one that just fired
+                    this.armAlarm(alarm, 1 << WakeupAlarmQueue.getSlot(key), singleSlot, dueTime, zone);
+                }
+            }
+
+            this.commitQueue(singleSlot);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return dueAlarms;
+    }
+
+    /**
+     * Rearm the stream pre-roll after its options changed
+     */
+    public synchronized void updatePreroll() {
+        this.armPreroll();
+    }
+
+    /**
+     * While the alarms of previous versions are registered, none of the migrated ones is armed yet,
+     * arm them all before an incremental change, that only touches the changed alarm
+     */
+    private void armMigratedAlarms() throws IOException {
+        if (this.store.getLegacyAlarmCount() != -1) {
+            this.log("Legacy alarms pending, arming all the migrated alarms");
+            this.setAlarms();
+        }
+    }
+
+    private boolean isSingleSlot() {
+        return MODE_SINGLE_SLOT.equals(this.store.getSchedulingMode());
+    }
+
+    private void commitQueue(boolean singleSlot) throws IOException {
+        this.store.getQueue().commit();
+
+        if (singleSlot) {
+            this.armHead(false);
+        }
+
+        this.armPreroll();
+        this.sendScheduledBatch();
+    }
+
+    /**
+     * Arm the stream pre-roll some seconds before the next alarm, a single one is kept, for the queue head
+     */
+    private void armPreroll() {
+        WakeupAlarmQueue queue = this.store.getQueue();
+        int preroll = this.store.getPrerollSeconds();
+        long time = -1;
+
+        if (preroll > 0 && !queue.isEmpty()) {
+            time = queue.peekTime() - preroll * 1000L;
+
+            // too close to the alarm, nothing to gain
+            if (time <= this.clock.currentTimeMillis()) {
+                time = -1;
+            }
+        }
+
+        if (time == this.armedPrerollTime) {
+            return;
+        }
+
+        if (time == -1) {
+            this.backend.cancel(ID_PREROLL);
+        } else {
+            this.backend.setPreroll(ID_PREROLL, time, queue.peekTime());
+        }
+
+        this.armedPrerollTime = time;
+    }
+
+    private void addScheduled(WakeupAlarmRule alarm, long alarmTime) {
+        if (!this.listener.isScheduledEventEnabled()) {
+            return;
+        }
+
+        if (this.scheduledBatch == null) {
+            this.scheduledBatch = new JSONArray();
+        }
+
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("alarmId", alarm.id);
+            entry.put("type", alarm.getTypeName());
+            entry.put("date", alarmTime);
+            this.scheduledBatch.put(entry);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendScheduledBatch() {
+        if (this.scheduledBatch == null) {
+            return;
+        }
+
+        this.listener.onScheduled(this.scheduledBatch);
+        this.scheduledBatch = null;
+    }
+
+    /**
+     * Register the queue head on the backend, if it's not already
+     */
+    private void armHead(boolean force) {
+        WakeupAlarmQueue queue = this.store.getQueue();
+
+        if (queue.isEmpty()) {
+            if (this.armedHeadKey != -1 || force) {
+                this.backend.cancel(ID_SINGLE_SLOT);
+            }
+
+            this.armedHeadKey = -1;
+            this.armedHeadTime = -1;
+            return;
+        }
+
+        int key = queue.peekKey();
+        long time = queue.peekTime();
+
+        if (!force && key == this.armedHeadKey && time == this.armedHeadTime) {
+            return;
+        }
+
+        WakeupAlarmRule alarm = this.store.find(WakeupAlarmQueue.getAlarmId(key));
+
+        if (alarm == null) {
+            // stale entry, the alarm no longer exists
+            queue.remove(key);
+            this.armHead(force);
+            return;
+        }
+
+        this.backend.set(ID_SINGLE_SLOT, time, alarm.id, WakeupAlarmQueue.getSlot(key));
+
+        this.armedHeadKey = key;
+        this.armedHeadTime = time;
+    }
+
+    private void armAlarm(WakeupAlarmRule alarm, int slots, boolean singleSlot, long now, TimeZone zone) {
+        WakeupAlarmQueue queue = this.store.getQueue();
+
+        for (int slot = 0; slot < WakeupAlarmRule.SLOT_COUNT; slot++) {
+            if ((slots & (1 << slot)) == 0) {
+                continue;
+            }
+
+            long alarmTime = alarm.nextOccurrence(slot, now, zone);
+            int key = WakeupAlarmQueue.getKey(alarm.id, slot);
+
+            if (alarmTime == -1) {
+                // no time to fire, or past the end, make sure nothing stays armed from a previous version of the alarm
+                queue.remove(key);
+
+                if (!singleSlot) {
+                    this.backend.cancel(getRequestCode(alarm.id, slot));
+                }
+
+                continue;
+            }
+
+            queue.schedule(key, alarmTime);
+
+            if (!singleSlot) {
+                this.backend.set(getRequestCode(alarm.id, slot), alarmTime, alarm.id, slot);
+            }
+
+            this.addScheduled(alarm, alarmTime);
+        }
+    }
+
+    private void cancelAlarm(WakeupAlarmRule alarm, int slots, boolean singleSlot) {
+        WakeupAlarmQueue queue = this.store.getQueue();
+
+        for (int slot = 0; slot < WakeupAlarmRule.SLOT_COUNT; slot++) {
+            if ((slots & (1 << slot)) == 0) {
+                continue;
+            }
+
+            queue.remove(WakeupAlarmQueue.getKey(alarm.id, slot));
+
+            if (!singleSlot) {
+                this.backend.cancel(getRequestCode(alarm.id, slot));
+            }
+        }
+    }
+
+    private void cancelAlarms(WakeupAlarmRule[] alarms) throws IOException {
+        this.log("Canceling alarms");
+
+        this.cancelLegacyAlarms();
+
+        WakeupAlarmQueue queue = this.store.getQueue();
+
+        if (this.isSingleSlot()) {
+            this.backend.cancel(ID_SINGLE_SLOT);
+            this.armedHeadKey = -1;
+            this.armedHeadTime = -1;
+        } else {
+            for (WakeupAlarmRule alarm : alarms) {
+                this.cancelAlarm(alarm, alarm.getSlots(), false);
+            }
+        }
+
+        queue.clear();
+        queue.commit();
+    }
+
+    /**
+     * Cancel the alarms set by previous versions, with ids based on the alarm position, only once
+     */
+    private void cancelLegacyAlarms() {
+        int alarmsCount = this.store.getLegacyAlarmCount();
+
+        if (alarmsCount == -1) {
+            return;
+        }
+
+        this.log("Canceling legacy alarms");
+
+        // id old one time usage
+        this.backend.cancel(ID_ONETIME_OFFSET);
+
+        for (int i = 0; i < 7; i++) {
+            // ids old daily list
+            this.backend.cancel(ID_DAYLIST_OFFSET + i);
+            // ids of the daily list rescheduled by the receiver
+            this.backend.cancel(ID_LEGACY_RESCHEDULE_OFFSET + i);
+        }
+
+        // ids sequential format
+        for (int i = 0; i < alarmsCount; i++) {
+            this.backend.cancel(ID_SEQUENTIAL_OFFSET + i);
+        }
+
+        this.store.clearLegacyAlarmCount();
+    }
+
+    /**
+     * Report the queue entries that should have fired before now, those alarms were lost while the device was off
+     */
+    private void reportMissed(long now) {
+        WakeupAlarmQueue queue = this.store.getQueue();
+        JSONArray missed = new JSONArray();
+
+        for (int key : queue.getKeysByTime()) {
+            long time = queue.getTime(key);
+
+            if (time >= now) {
+                break;
+            }
+
+            try {
+                JSONObject entry = new JSONObject();
+                entry.put("alarmId", WakeupAlarmQueue.getAlarmId(key));
+                entry.put("date", time);
+                missed.put(entry);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (missed.length() > 0) {
+            this.log("Missed " + missed.length() + " alarms while the device was off");
+            this.listener.onMissed(missed);
+        }
+    }
+
+    /**
+     * Hash of everything that defines the armed alarms: the compiled schedule, scheduling mode and time zone
+     */
+    private long getFingerprint() {
+        TimeZone zone = this.clock.getTimeZone();
+        long hash = zone.getID().hashCode();
+
+        hash = 31 * hash + zone.getRawOffset();
+        hash = 31 * hash + this.store.getSchedulingMode().hashCode();
+
+        for (int i = 0; i < this.store.size(); i++) {
+            hash = 31 * hash + this.store.get(i).hashCode();
+        }
+
+        return hash;
+    }
+
+    private void saveFingerprint() {
+        this.store.saveFingerprint(this.getFingerprint(), this.clock.currentTimeMillis());
+    }
+
+    /**
+     * Whether the next alarm is still registered on the backend
+     */
+    private boolean isHeadArmed() {
+        WakeupAlarmQueue queue = this.store.getQueue();
+
+        if (queue.isEmpty()) {
+            return true;
+        }
+
+        int key = queue.peekKey();
+        int id = this.isSingleSlot() ? ID_SINGLE_SLOT : getRequestCode(WakeupAlarmQueue.getAlarmId(key), WakeupAlarmQueue.getSlot(key));
+
+        return this.backend.isArmed(id);
+    }
+
+    private void log(String log) {
+        this.listener.log(log);
+    }
+}
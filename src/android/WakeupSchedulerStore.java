@@ -0,0 +1,63 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Everything the `WakeupSchedulerCore` persists: the alarms, sorted by id, their queue and the scheduler settings
+ *
+ * Changes to the alarms are only persisted on `commit`, the queue is committed on its own
+ */
+public interface WakeupSchedulerStore {
+    int size();
+
+    WakeupAlarmRule get(int position);
+
+    /**
+     * The alarm with the given id, or null
+     */
+    WakeupAlarmRule find(int id);
+
+    WakeupAlarmRule[] toArray();
+
+    void put(WakeupAlarmRule rule, String extra);
+
+    boolean remove(int id);
+
+    /**
+     * Replace all alarms with the list received from the app, an invalid list keeps the current alarms
+     */
+    void replaceAll(JSONArray alarms, long now, TimeZone zone) throws JSONException;
+
+    void commit() throws IOException;
+
+    WakeupAlarmQueue getQueue();
+
+    String getSchedulingMode();
+
+    void setSchedulingMode(String mode);
+
+    /**
+     * Number of alarms armed by versions with position based ids, -1 if they were already cancelled
+     */
+    int getLegacyAlarmCount();
+
+    void clearLegacyAlarmCount();
+
+    long getFingerprint();
+
+    /**
+     * When the alarms were last armed, on the wall clock
+     */
+    long getArmedAt();
+
+    void saveFingerprint(long fingerprint, long armedAt);
+
+    /**
+     * Seconds the stream pre-roll runs ahead of the alarms, 0 if disabled
+     */
+    int getPrerollSeconds();
+}
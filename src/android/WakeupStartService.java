@@ -23,25 +23,28 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.R;
 import androidx.annotation.RequiresApi;
 import android.text.format.DateFormat;
 import android.util.Log;
 import java.io.IOException;
+import org.json.JSONException;
+import org.json.JSONObject;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
 
 import com.google.android.exoplayer2.*;
+import com.google.android.exoplayer2.analytics.*;
 import com.google.android.exoplayer2.extractor.*;
 import com.google.android.exoplayer2.source.*;
 import com.google.android.exoplayer2.source.dash.*;
 import com.google.android.exoplayer2.source.hls.*;
 import com.google.android.exoplayer2.source.smoothstreaming.*;
 import com.google.android.exoplayer2.trackselection.*;
-import com.google.android.exoplayer2.ui.*;
 import com.google.android.exoplayer2.upstream.*;
 import com.google.android.exoplayer2.util.*;
 
@@ -57,8 +60,42 @@ public class WakeupStartService extends Service {
     // Default text of the background notification
     private static final String NOTIFICATION_TEXT = "...";
 
+    // highest pre-roll accepted, in seconds
+    public static final int MAX_PREROLL_SECONDS = 120;
+
+    // default cap of the data loaded while warming up
+    public static final int DEFAULT_PREROLL_MAX_BYTES = 1024 * 1024;
+
+    // time to wait for the alarm after the expected fire time before giving up the warmed up stream
+    private static final long PREROLL_GRACE_MS = 60 * 1000;
+
+    // default time for the streaming to be audible before falling back to the ringtone, in seconds
+    public static final int DEFAULT_STREAMING_TIMEOUT = 10;
+
+    // default time the alarm plays before the service stops by itself, in seconds
+    public static final int DEFAULT_AUTO_STOP = 5 * 60;
+
+    // the wake lock outlives the auto stop by this margin, in case the service is not stopped on time
+    private static final long WAKE_LOCK_MARGIN_MS = 30 * 1000;
+
+    // why the service stopped, reported on the fire stats
+    private static final String STOP_DISMISS = "dismiss";
+    private static final String STOP_FOCUS_LOSS = "focus_loss";
+    private static final String STOP_TIMEOUT = "timeout";
+    private static final String STOP_ERROR = "error";
+
+    // longest wait for the ringtone to be ready to play
+    private static final long RINGTONE_PREPARE_TIMEOUT_MS = 5000;
+
+    // bandwidth assumed before any measure, low for the fastest start on adaptive streams
+    private static final long INITIAL_BITRATE_ESTIMATE = 64000;
+
+    // reads of the alarm store, kept off the main thread
+    private static final Executor executor = WakeupBackground.newLane();
+
     public enum RadioPlayerState {
         IDLE,
+        WARMING,
         PLAYING,
         STOPPED,
     }
@@ -72,8 +109,11 @@ public class WakeupStartService extends Service {
     // AudioManager
     private AudioManager audioManager;
 
-    // current intent extras
-    private String extrasBundleContent;
+    // current intent extras, written by the payload loader when not carried on the intent
+    private volatile String extrasBundleContent;
+
+    // whether the payload is read from the store on background
+    private boolean extrasLoading = false;
 
     // current volume
     private int volume;
@@ -97,7 +137,7 @@ public class WakeupStartService extends Service {
     private RadioPlayerState radioPlayerState = RadioPlayerState.IDLE;
 
     // player event listener
-    private ExoPlayer.EventListener playerEventListener;
+    private Player.EventListener playerEventListener;
 
     // current stream url
     private String ringtoneUrl;
@@ -105,21 +145,90 @@ public class WakeupStartService extends Service {
     // alarm media player
     private MediaPlayer ringtoneSound;
 
+    // low latency ringtone player, used instead of the media player when the ringtone is already decoded
+    private WakeupPcmPlayer pcmPlayer;
+
+    // whether to try the low latency ringtone player
+    private boolean ringtoneLowLatency = false;
+
     // AudioFocusRequest
     private AudioFocusRequest audioFocusRequest;
 
     // partial wake lock to prevent the app from going to sleep when locked
     private PowerManager.WakeLock wakeLock;
 
-    // timer to auto stop service after a timeout
-    private Timer autoStopTimer;
+    // stop the service after a timeout, posted on the service handler as the other delayed work
+    private final Runnable autoStop = new Runnable() {
+        @Override
+        public void run() {
+            log("Timed out, auto shuting down service");
+            WakeupStartService.this.stop(STOP_TIMEOUT);
+        }
+    };
+
+    // whether the alarm already fired, otherwise the service is only warming up the stream
+    private boolean wakeupStarted = false;
+
+    // accounting of this service run, see `WakeupFireStats`
+    private long serviceStartTime = 0;
+    private long wakeLockAcquireTime = 0;
+    private long wakeLockExpireTime = 0;
+    private long foregroundStartTime = 0;
+    private long streamedBytes = 0;
+    private int alarmId = -1;
+    private String stopReason = null;
+
+    // data loaded by the radio player while warming up, and its cap
+    private long prerollBytes = 0;
+    private long prerollMaxBytes = DEFAULT_PREROLL_MAX_BYTES;
+
+    private long prerollStartTime = 0;
+
+    // whether to start from the on disk snapshot of the stream, and whether to follow it with the live stream
+    // cache key of the stream snapshot played first, null when there's none
+    private String streamSnapshotKey = null;
+    private boolean streamLive = true;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // time the alarm started, and the first source audible, null until then
+    private long wakeupStartTime = 0;
+    private String firstAudioSource = null;
+    private long firstAudioTime = -1;
+
+    // ringtone preparation state, its duration and the reason it failed, reported on the stop event
+    private boolean ringtonePrepared = false;
+    private long ringtonePrepareStartTime = 0;
+    private long ringtonePrepareTime = -1;
+    private String ringtoneError = null;
+
+    private final Runnable ringtonePrepareDeadline = new Runnable() {
+        @Override
+        public void run() {
+            WakeupStartService.this.onRingtoneFailed("prepare timeout");
+        }
+    };
+
+    // whether the streaming replaces the ringtone started on its timeout, once it's ready
+    private boolean streamingTakeover = false;
+
+    // time the playing stream started buffering again, 0 if not stalled
+    private long stallStartTime = 0;
+
+    // fallback to the ringtone if the streaming is not audible in time
+    private final Runnable streamingDeadline = new Runnable() {
+        @Override
+        public void run() {
+            WakeupStartService.this.onStreamingDeadline();
+        }
+    };
 
     // receiver for destroy intent
     private BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (intent.getAction().equals("wakeup-notificaion-destroy")) {
-                WakeupStartService.this.stopSelf();
+                WakeupStartService.this.stop(STOP_DISMISS);
             }
         }
     };
@@ -130,6 +239,7 @@ public class WakeupStartService extends Service {
             if (
                 WakeupStartService.this.radioPlayer == null
                 && WakeupStartService.this.ringtoneSound == null
+                && WakeupStartService.this.pcmPlayer == null
             ) {
                 return;
             }
@@ -144,6 +254,10 @@ public class WakeupStartService extends Service {
                 if (WakeupStartService.this.ringtoneSound != null) {
                     WakeupStartService.this.ringtoneSound.setVolume(volume, volume);
                 }
+
+                if (WakeupStartService.this.pcmPlayer != null) {
+                    WakeupStartService.this.pcmPlayer.setVolume(volume);
+                }
             } else if (focusChange == AudioManager.AUDIOFOCUS_GAIN) {
                 float volume = WakeupStartService.this.volume * 0.01f;
 
@@ -154,8 +268,12 @@ public class WakeupStartService extends Service {
                 if (WakeupStartService.this.ringtoneSound != null) {
                     WakeupStartService.this.ringtoneSound.setVolume(volume, volume);
                 }
+
+                if (WakeupStartService.this.pcmPlayer != null) {
+                    WakeupStartService.this.pcmPlayer.setVolume(volume);
+                }
             } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS || focusChange == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT) {
-                WakeupStartService.this.stopSelf();
+                WakeupStartService.this.stop(STOP_FOCUS_LOSS);
             }
         }
     };
@@ -174,13 +292,26 @@ public class WakeupStartService extends Service {
 
         Bundle extrasBundle = intent.getExtras();
 
+        if (intent.getBooleanExtra("preroll", false)) {
+            return this.startPreroll(prefs, intent.getLongExtra("fireAt", 0));
+        }
+
+        this.wakeupStarted = true;
+        this.wakeupStartTime = SystemClock.elapsedRealtime();
+        this.cancelAutoStop();
+
         if (extrasBundle != null && extrasBundle.get("extra") != null) {
             this.extrasBundleContent = extrasBundle.get("extra").toString();
+        } else if (extrasBundle != null && extrasBundle.containsKey("alarmId")) {
+            // the payload is not carried on the intent, read it from the store on background
+            this.alarmId = extrasBundle.getInt("alarmId");
+            this.loadExtras(context, this.alarmId, intent.getBooleanExtra("wakeup", true));
         }
 
         boolean streamingOnlyWifi = prefs.getBoolean("alarms_streaming_only_wifi", false);
         this.streamingUrl = prefs.getString("alarms_streaming_url", null);
         this.ringtoneUrl = prefs.getString("alarms_ringtone", null);
+        this.ringtoneLowLatency = prefs.getBoolean("alarms_ringtone_low_latency", false);
         this.volume = prefs.getInt("alarms_volume", 100);
         this.streamType = prefs.getInt("alarms_stream_type", AudioManager.STREAM_ALARM);
         String notificationText = prefs.getString("alarms_notification_text", "%time%");
@@ -203,27 +334,54 @@ public class WakeupStartService extends Service {
 
         if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
             log("Can't gain audio focus!");
-            this.stopSelf();
+            this.stop(STOP_FOCUS_LOSS);
             return START_NOT_STICKY;
         }
 
         boolean started = false;
 
         if (streamingUrl != null) {
-            if (!streamingOnlyWifi || this.isConnectedOnWifi()) {
-                started = this.startRadioPlayer();
+            // a warmed up player already has the live data, the snapshot was resolved on background by the receiver
+            if (
+                this.radioPlayerState != RadioPlayerState.WARMING
+                    && prefs.getInt("alarms_streaming_cache_max_bytes", 0) > 0
+                    && WakeupStreamType.resolve(context, streamingUrl) == C.TYPE_OTHER
+            ) {
+                this.streamSnapshotKey = WakeupStreamCache.getSnapshotKey(streamingUrl);
+            }
+
+            if (this.radioPlayerState == RadioPlayerState.WARMING || !streamingOnlyWifi || isConnectedOnWifi(context)) {
+                started = this.startRadioPlayer(false);
+            } else if (this.streamSnapshotKey != null) {
+                log("Not on wifi, playing only the stream snapshot");
+                this.streamLive = false;
+                started = this.startRadioPlayer(false);
             } else {
                 log("Can't start radio, not connect to internet or required a wifi/ethernet connection");
             }
         }
 
+        if (started && this.radioPlayer != null && ringtoneUrl != null) {
+            // played if the streaming doesn't start in time
+            if (this.ringtoneLowLatency) {
+                WakeupRingtoneCache.preload(context);
+            }
+
+            long timeout = prefs.getInt("alarms_streaming_timeout", DEFAULT_STREAMING_TIMEOUT) * 1000L;
+            this.streamingTakeover = prefs.getBoolean("alarms_streaming_takeover", false);
+
+            if (timeout > 0) {
+                this.handler.postDelayed(this.streamingDeadline, Math.max(0, timeout - (SystemClock.elapsedRealtime() - this.wakeupStartTime)));
+            }
+        }
+
         if (!started && ringtoneUrl != null) {
             started = this.startRingtone();
         }
 
         if (!started) {
             log("Can't start service, no options left!");
-            this.stopSelf();
+            this.stop(STOP_ERROR);
             return START_NOT_STICKY;
         }
 
@@ -236,7 +394,20 @@ public class WakeupStartService extends Service {
             format = "HH:mm";
         }
 
-        // open app with notification click
+        this.setContentIntent(context, intent.getBooleanExtra("wakeup", true));
+
+        this.notificationBuilder.setContentText(notificationText.replace("%time%", DateFormat.format(format, new Date())));
+        this.notificationManager.notify(NOTIFICATION_ID, this.notificationBuilder.build());
+
+        this.scheduleAutoStop(getAutoStopMs(prefs));
+
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Open the app with the alarm payload on the notification click
+     */
+    private void setContentIntent(Context context, boolean wakeup) {
         try {
             String packageName = context.getPackageName();
             Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
@@ -246,7 +417,7 @@ public class WakeupStartService extends Service {
             Intent notifyIntent = new Intent(context, mainActivityClass);
 
             notifyIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            notifyIntent.putExtra("wakeup", intent.getBooleanExtra("wakeup", true));
+            notifyIntent.putExtra("wakeup", wakeup);
 
             if (this.extrasBundleContent != null) {
                 notifyIntent.putExtra("extra", this.extrasBundleContent);
@@ -260,29 +431,143 @@ public class WakeupStartService extends Service {
         } catch (ClassNotFoundException e) {
             log("Can't initialize activity class");
         }
+    }
 
-        this.notificationBuilder.setContentText(notificationText.replace("%time%", DateFormat.format(format, new Date())));
-        this.notificationManager.notify(NOTIFICATION_ID, this.notificationBuilder.build());
-
-        if (this.autoStopTimer != null) {
-            this.autoStopTimer.cancel();
-            this.autoStopTimer = null;
-        }
+    /**
+     * Read the payload of the alarm from the store, then update the notification click with it
+     */
+    private void loadExtras(final Context context, final int alarmId, final boolean wakeup) {
+        this.extrasLoading = true;
 
-        this.autoStopTimer = new Timer();
-        this.autoStopTimer.schedule(new TimerTask() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
-                // this code will be executed after 5 minutes
-                log("Timed out, auto shuting down service");
-                WakeupStartService.this.stopSelf();
-
+                WakeupStartService.this.extrasBundleContent = WakeupAlarmStore.getInstance(context).getExtra(alarmId);
+
+                WakeupStartService.this.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!WakeupStartService.this.extrasLoading) {
+                            return;
+                        }
+
+                        WakeupStartService.this.extrasLoading = false;
+                        WakeupStartService.this.setContentIntent(context, wakeup);
+                        WakeupStartService.this.notificationManager.notify(NOTIFICATION_ID, WakeupStartService.this.notificationBuilder.build());
+                    }
+                });
             }
-        }, 5 * 60 * 1000 * 1L);
+        });
+    }
+
+    /**
+     * Start the radio player muted and paused before the alarm fires, so the connection is open
+     * and the buffer is filled once it does, the data loaded is limited by `alarms_streaming_preroll_max_bytes`
+     */
+    private int startPreroll(SharedPreferences prefs, long fireAt) {
+        if (this.wakeupStarted || this.radioPlayerState != RadioPlayerState.IDLE) {
+            return START_NOT_STICKY;
+        }
+
+        this.streamingUrl = prefs.getString("alarms_streaming_url", null);
+        this.volume = prefs.getInt("alarms_volume", 100);
+        this.streamType = prefs.getInt("alarms_stream_type", AudioManager.STREAM_ALARM);
+        this.prerollMaxBytes = prefs.getInt("alarms_streaming_preroll_max_bytes", DEFAULT_PREROLL_MAX_BYTES);
+
+        if (
+            this.streamingUrl == null
+                || (prefs.getBoolean("alarms_streaming_only_wifi", false) && !isConnectedOnWifi(this))
+        ) {
+            log("Can't warm up the stream");
+            this.stop(STOP_ERROR);
+            return START_NOT_STICKY;
+        }
+
+        log("Warming up the stream");
+        this.prerollStartTime = System.currentTimeMillis();
+        this.buidAudioAttributes();
+        this.startRadioPlayer(true);
+
+        // the alarm was removed or didn't fire, don't keep the stream open
+        long timeout = Math.max(0, fireAt - System.currentTimeMillis()) + PREROLL_GRACE_MS;
+        this.scheduleAutoStop(Math.min(timeout, (MAX_PREROLL_SECONDS * 1000L) + PREROLL_GRACE_MS));
 
         return START_NOT_STICKY;
     }
 
+    /**
+     * Stop the service after the delay, the wake lock is held up to a margin after it
+     */
+    private void scheduleAutoStop(long delayMs) {
+        this.handler.removeCallbacks(this.autoStop);
+        this.handler.postDelayed(this.autoStop, delayMs);
+
+        this.acquireWakeLock(delayMs + WAKE_LOCK_MARGIN_MS);
+    }
+
+    private void acquireWakeLock(long timeoutMs) {
+        if (this.wakeLock == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+
+        if (!this.wakeLock.isHeld()) {
+            this.wakeLockAcquireTime = now;
+        }
+
+        // not reference counted, acquiring again replaces the timeout
+        this.wakeLock.acquire(timeoutMs);
+        this.wakeLockExpireTime = now + timeoutMs;
+    }
+
+    /**
+     * Stop the service, the first reason given is the one reported
+     */
+    private void stop(String reason) {
+        if (this.stopReason == null) {
+            this.stopReason = reason;
+        }
+
+        this.stopSelf();
+    }
+
+    /**
+     * Report this service run to `WakeupFireStats`
+     */
+    private void recordFireStats() {
+        long now = SystemClock.elapsedRealtime();
+        JSONObject fire = new JSONObject();
+
+        try {
+            fire.put("time", System.currentTimeMillis() - (now - this.serviceStartTime));
+
+            if (this.alarmId != -1) {
+                fire.put("alarmId", this.alarmId);
+            }
+
+            fire.put("preroll", !this.wakeupStarted);
+            // a timed out lock was released by the system at its expire time
+            fire.put("wakeLockMs", Math.max(0, Math.min(now, this.wakeLockExpireTime) - this.wakeLockAcquireTime));
+            fire.put("foregroundMs", now - this.foregroundStartTime);
+            fire.put("source", this.firstAudioSource != null ? this.firstAudioSource : "none");
+            fire.put("bytesStreamed", this.streamedBytes);
+            fire.put("stopReason", this.stopReason != null ? this.stopReason : STOP_DISMISS);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        WakeupFireStats.record(this, fire);
+    }
+
+    private void cancelAutoStop() {
+        this.handler.removeCallbacks(this.autoStop);
+    }
+
+    private static long getAutoStopMs(SharedPreferences prefs) {
+        return prefs.getInt("alarms_auto_stop", DEFAULT_AUTO_STOP) * 1000L;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -290,8 +575,11 @@ public class WakeupStartService extends Service {
 
         PowerManager powerMgr = (PowerManager) this.getSystemService(POWER_SERVICE);
 
+        this.serviceStartTime = SystemClock.elapsedRealtime();
         this.wakeLock = powerMgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WakeupStartService.class.getName());
-        this.wakeLock.acquire();
+        this.wakeLock.setReferenceCounted(false);
+        // never unbounded, even if the service dies without onDestroy
+        this.acquireWakeLock(getAutoStopMs(PreferenceManager.getDefaultSharedPreferences(this)) + WAKE_LOCK_MARGIN_MS);
 
         this.notificationManager = (NotificationManager) this.getSystemService(Context.NOTIFICATION_SERVICE);
         this.audioManager = (AudioManager) this.getSystemService(Context.AUDIO_SERVICE);
@@ -299,6 +587,7 @@ public class WakeupStartService extends Service {
         Notification serviceNotification = this.createNotification();
 
         this.startForeground(NOTIFICATION_ID, serviceNotification);
+        this.foregroundStartTime = SystemClock.elapsedRealtime();
         // register a receiver for the destroy intent
         this.getApplicationContext().registerReceiver(this.broadcastReceiver, new IntentFilter("wakeup-notificaion-destroy"));
     }
@@ -317,13 +606,9 @@ public class WakeupStartService extends Service {
             this.audioManager.abandonAudioFocus(this.audioFocusChangeListener);
         }
 
+        this.handler.removeCallbacks(this.streamingDeadline);
         this.releaseRadioPlayer();
-
-        if (this.ringtoneSound != null) {
-            this.ringtoneSound.stop();
-            this.ringtoneSound.release();
-            this.ringtoneSound = null;
-        }
+        this.releaseRingtone();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             this.stopForeground(Service.STOP_FOREGROUND_REMOVE);
@@ -333,16 +618,33 @@ public class WakeupStartService extends Service {
         this.stopSelf();
 
         if (this.wakeLock != null) {
-            this.wakeLock.release();
+            if (this.wakeLock.isHeld()) {
+                this.wakeLock.release();
+            }
+
             this.wakeLock = null;
         }
 
-        if (this.autoStopTimer != null) {
-            this.autoStopTimer.cancel();
-            this.autoStopTimer = null;
+        this.cancelAutoStop();
+        this.recordFireStats();
+        // snapshot hits and bytes served, written on background
+        WakeupStreamCache.save(this);
+
+        // a warmed up service that never rang has no result to send
+        if (this.wakeupStarted && this.extrasLoading) {
+            // the payload is still being read, the result is sent after it, on the same lane
+            this.extrasLoading = false;
+            final JSONObject playback = this.getPlaybackResult();
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    WakeupPlugin.sendStopResult(WakeupStartService.this.extrasBundleContent, playback);
+                }
+            });
+        } else if (this.wakeupStarted) {
+            WakeupPlugin.sendStopResult(this.extrasBundleContent, this.getPlaybackResult());
         }
-
-        WakeupPlugin.sendStopResult(this.extrasBundleContent);
     }
 
     private Notification createNotification() {
@@ -395,29 +697,54 @@ public class WakeupStartService extends Service {
         return this.notificationBuilder.build();
     }
 
-    private boolean startRadioPlayer() {
+    private boolean startRadioPlayer(boolean warmUp) {
+        if (this.radioPlayerState == RadioPlayerState.WARMING && !warmUp) {
+            log("Starting the warmed up radio player, " + this.prerollBytes + " bytes loaded");
+            WakeupDiagnostics.record("preroll_warm", System.currentTimeMillis() - this.prerollStartTime);
+
+            this.radioPlayerState = RadioPlayerState.IDLE;
+            this.radioPlayer.setVolume(this.volume * 0.01f);
+            this.radioPlayer.setPlayWhenReady(true);
+
+            return true;
+        }
+
         if (this.radioPlayerState != RadioPlayerState.IDLE) {
             return this.radioPlayerState == RadioPlayerState.PLAYING;
         }
 
-        log("Starting radio player");
+        log(warmUp ? "Warming up radio player" : "Starting radio player");
 
-        this.playerEventListener = playerEventListener = new ExoPlayer.EventListener() {
+        this.playerEventListener = playerEventListener = new Player.EventListener() {
             @Override
             public void onPlayerError(ExoPlaybackException error) {
+                WakeupStartService.this.log("ERROR OCCURED.");
+
+                if (WakeupStartService.this.radioPlayerState == RadioPlayerState.WARMING) {
+                    // retried from scratch once the alarm fires
+                    WakeupStartService.this.abortPreroll();
+                    return;
+                }
+
                 WakeupStartService.this.releaseRadioPlayer();
                 WakeupStartService.this.startRingtoneOrStop();
-                WakeupStartService.this.log("ERROR OCCURED.");
             }
 
             @Override
             public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+                WakeupStartService.this.trackStalls(playbackState);
+
                 if (playWhenReady && playbackState == ExoPlayer.STATE_READY && WakeupStartService.this.radioPlayerState != RadioPlayerState.PLAYING) {
                     // The player is only playing if the state is Player.STATE_READY and playWhenReady=true
                     WakeupStartService.this.log("Player state changed. Playing");
                     WakeupStartService.this.radioPlayerState = RadioPlayerState.PLAYING;
-                } else if (playbackState == ExoPlayer.STATE_IDLE && WakeupStartService.this.radioPlayerState == RadioPlayerState.PLAYING) {
+                    WakeupStartService.this.onRadioPlaying();
+                } else if (
+                    (playbackState == ExoPlayer.STATE_IDLE || playbackState == ExoPlayer.STATE_ENDED)
+                        && WakeupStartService.this.radioPlayerState == RadioPlayerState.PLAYING
+                ) {
                     // Player.STATE_IDLE: This is the initial state, the state when the player is stopped, and when playback failed.
+                    // Player.STATE_ENDED: only reached when playing the stream snapshot alone
                     WakeupStartService.this.log("Player state changed. Stopped");
                     WakeupStartService.this.releaseRadioPlayer();
                     WakeupStartService.this.startRingtoneOrStop();
@@ -427,18 +754,81 @@ public class WakeupStartService extends Service {
             }
         };
 
-        DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
-        TrackSelector trackSelector = new DefaultTrackSelector();
-        LoadControl loadControl = new DefaultLoadControl();
+        // start on the lowest variants of adaptive streams, the bandwidth meter steps up from there
+        DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter.Builder(this.getApplicationContext())
+            .setInitialBitrateEstimate(INITIAL_BITRATE_ESTIMATE)
+            .build();
+        TrackSelector trackSelector = new DefaultTrackSelector(this.getApplicationContext(), new AdaptiveTrackSelection.Factory());
+        LoadControl loadControl;
+
+        if (warmUp) {
+            // stop loading once the cap is reached, even if the buffer duration is not
+            loadControl = new DefaultLoadControl.Builder()
+                .setTargetBufferBytes((int) this.prerollMaxBytes)
+                .setPrioritizeTimeOverSizeThresholds(false)
+                .createDefaultLoadControl();
+        } else {
+            loadControl = new DefaultLoadControl();
+        }
 
-        this.radioPlayer = ExoPlayerFactory.newSimpleInstance(this.getApplicationContext(), trackSelector, loadControl);
+        this.radioPlayer = new SimpleExoPlayer.Builder(this.getApplicationContext())
+            .setTrackSelector(trackSelector)
+            .setLoadControl(loadControl)
+            .setBandwidthMeter(bandwidthMeter)
+            .build();
         this.radioPlayer.addListener(this.playerEventListener);
+        this.radioPlayer.addAnalyticsListener(new AnalyticsListener() {
+            @Override
+            public void onDecoderInputFormatChanged(EventTime eventTime, int trackType, Format format) {
+                // also called when adaptive streams switch variant
+                if (trackType == C.TRACK_TYPE_AUDIO) {
+                    WakeupStartService.this.recordAudioFormat(format);
+                }
+            }
+        });
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        this.prerollBytes = 0;
+
+        TransferListener transferListener = new TransferListener() {
+            @Override
+            public void onTransferInitializing(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            }
 
-        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(getApplicationContext(), "CordovaWakeupPlugin");
+            @Override
+            public void onTransferStart(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            }
+
+            @Override
+            public void onBytesTransferred(DataSource source, DataSpec dataSpec, boolean isNetwork, final int bytesTransferred) {
+                // called from the loader thread
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        WakeupStartService.this.onRadioBytesTransferred(bytesTransferred);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransferEnd(DataSource source, DataSpec dataSpec, boolean isNetwork) {
+            }
+        };
+
+        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(getApplicationContext(), "CordovaWakeupPlugin", transferListener);
         ExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
 
-        Handler mainHandler = new Handler();
-        MediaSource mediaSource = new ExtractorMediaSource(Uri.parse(this.streamingUrl), dataSourceFactory, extractorsFactory, mainHandler, null);
+        MediaSource mediaSource = this.buildMediaSource(dataSourceFactory, extractorsFactory);
+
+        if (this.streamSnapshotKey != null) {
+            // play the local bytes while the live stream connects, then continue on it
+            DataSource.Factory snapshotFactory = WakeupStreamCache.getInstance(this).getSnapshotFactory();
+            MediaSource snapshotSource = new ProgressiveMediaSource.Factory(snapshotFactory, extractorsFactory)
+                .setCustomCacheKey(this.streamSnapshotKey)
+                .createMediaSource(Uri.parse(this.streamingUrl));
+
+            mediaSource = this.streamLive ? new ConcatenatingMediaSource(snapshotSource, mediaSource) : snapshotSource;
+        }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             this.radioPlayer.setAudioAttributes(this.playerAudioAttributes);
@@ -447,12 +837,143 @@ public class WakeupStartService extends Service {
         }
 
         this.radioPlayer.prepare(mediaSource);
-        this.radioPlayer.setVolume(this.volume * 0.01f);
-        this.radioPlayer.setPlayWhenReady(true);
+
+        if (warmUp) {
+            // prepared but paused and muted, the buffer is filled without playing anything
+            this.radioPlayerState = RadioPlayerState.WARMING;
+            this.radioPlayer.setVolume(0f);
+            this.radioPlayer.setPlayWhenReady(false);
+        } else {
+            this.radioPlayer.setVolume(this.volume * 0.01f);
+            this.radioPlayer.setPlayWhenReady(true);
+        }
 
         return true;
     }
 
+    private MediaSource buildMediaSource(DataSource.Factory dataSourceFactory, ExtractorsFactory extractorsFactory) {
+        Uri uri = Uri.parse(this.streamingUrl);
+
+        switch (WakeupStreamType.resolve(this, this.streamingUrl)) {
+            case C.TYPE_HLS:
+                log("Using a HLS source");
+                // skip loading the first segment of each variant just to know its format
+                return new HlsMediaSource.Factory(dataSourceFactory).setAllowChunklessPreparation(true).createMediaSource(uri);
+            case C.TYPE_DASH:
+                log("Using a DASH source");
+                return new DashMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+            case C.TYPE_SS:
+                log("Using a SmoothStreaming source");
+                return new SsMediaSource.Factory(dataSourceFactory).createMediaSource(uri);
+            default:
+                return new ProgressiveMediaSource.Factory(dataSourceFactory, extractorsFactory).createMediaSource(uri);
+        }
+    }
+
+    private void trackStalls(int playbackState) {
+        if (this.radioPlayerState != RadioPlayerState.PLAYING) {
+            return;
+        }
+
+        if (playbackState == ExoPlayer.STATE_BUFFERING && this.stallStartTime == 0) {
+            this.stallStartTime = SystemClock.elapsedRealtime();
+        } else if (playbackState != ExoPlayer.STATE_BUFFERING && this.stallStartTime != 0) {
+            // the count of samples is the count of stalls
+            WakeupDiagnostics.record("stream_stall", SystemClock.elapsedRealtime() - this.stallStartTime);
+            WakeupDiagnostics.save(this);
+            this.stallStartTime = 0;
+        }
+    }
+
+    private void recordAudioFormat(Format format) {
+        WakeupDiagnostics.recordValue(
+            "stream_format",
+            format.sampleMimeType + (format.bitrate != Format.NO_VALUE ? " " + format.bitrate + "bps" : "")
+        );
+        WakeupDiagnostics.save(this);
+    }
+
+    private void onRadioPlaying() {
+        this.handler.removeCallbacks(this.streamingDeadline);
+
+        if (this.ringtoneSound != null || this.pcmPlayer != null) {
+            // the ringtone was started on the timeout
+            log("Streaming ready, replacing the ringtone");
+            this.releaseRingtone();
+            WakeupDiagnostics.record("streaming_takeover", SystemClock.elapsedRealtime() - this.wakeupStartTime);
+        }
+
+        this.recordFirstAudio(this.streamSnapshotKey != null ? "snapshot" : "stream");
+    }
+
+    private void onStreamingDeadline() {
+        if (this.radioPlayer == null || this.radioPlayerState == RadioPlayerState.PLAYING) {
+            return;
+        }
+
+        log("Streaming not audible in time, falling back to the ringtone");
+
+        if (!this.streamingTakeover) {
+            this.releaseRadioPlayer();
+        }
+
+        this.startRingtoneOrStop();
+    }
+
+    /**
+     * Record the time from the alarm start to the first audible source, once per alarm
+     */
+    private void recordFirstAudio(String source) {
+        if (!this.wakeupStarted || this.firstAudioSource != null) {
+            return;
+        }
+
+        long duration = SystemClock.elapsedRealtime() - this.wakeupStartTime;
+        this.firstAudioSource = source;
+        this.firstAudioTime = duration;
+
+        log("First audio from " + source + " after " + duration + "ms");
+        WakeupDiagnostics.record("ttfa_" + source, duration);
+        WakeupDiagnostics.save(this);
+        WakeupMetrics.record(WakeupMetrics.FIRST_AUDIO, duration);
+
+        // the first save of the process loads the metrics file, kept off the main thread
+        final Context context = this.getApplicationContext();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                WakeupMetrics.save(context);
+            }
+        });
+    }
+
+    private void onRadioBytesTransferred(int bytesTransferred) {
+        this.streamedBytes += bytesTransferred;
+
+        if (this.radioPlayerState != RadioPlayerState.WARMING) {
+            return;
+        }
+
+        this.prerollBytes += bytesTransferred;
+
+        // the load control should stop before that, guard against streams that don't respect it
+        if (this.prerollBytes > this.prerollMaxBytes * 2) {
+            log("Pre-roll data cap exceeded");
+            this.abortPreroll();
+        }
+    }
+
+    private void abortPreroll() {
+        log("Aborting the pre-roll");
+        this.releaseRadioPlayer();
+        this.radioPlayerState = RadioPlayerState.IDLE;
+
+        if (!this.wakeupStarted) {
+            this.stop(STOP_ERROR);
+        }
+    }
+
     private void releaseRadioPlayer() {
         if (this.radioPlayer != null) {
             this.radioPlayerState = RadioPlayerState.STOPPED;
@@ -462,7 +983,11 @@ public class WakeupStartService extends Service {
     }
 
     private boolean startRingtone() {
-        if (this.ringtoneSound != null) {
+        if (this.ringtoneSound != null || this.pcmPlayer != null) {
+            return true;
+        }
+
+        if (this.ringtoneLowLatency && this.startPcmRingtone()) {
             return true;
         }
 
@@ -478,21 +1003,168 @@ public class WakeupStartService extends Service {
             this.ringtoneSound.setAudioStreamType(this.streamType);
         }
 
+        this.ringtoneSound.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mediaPlayer) {
+                WakeupStartService.this.onRingtonePrepared(mediaPlayer);
+            }
+        });
+
+        this.ringtoneSound.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                if (mediaPlayer == WakeupStartService.this.ringtoneSound) {
+                    WakeupStartService.this.onRingtoneFailed("media error " + what + "/" + extra);
+                }
+
+                return true;
+            }
+        });
+
         try {
             this.ringtoneSound.setDataSource(this.getApplicationContext(), Uri.parse(this.ringtoneUrl));
-            this.ringtoneSound.prepare();
-            this.ringtoneSound.start();
-            return true;
         } catch (IOException exeption) {
             log("Can't play the ringtone!");
+            this.ringtoneError = "can't open: " + exeption.getMessage();
+            this.ringtoneSound.release();
             this.ringtoneSound = null;
+            WakeupDiagnostics.recordValue("ringtone_error", this.ringtoneError);
+            WakeupDiagnostics.save(this);
+            return false;
+        }
+
+        // prepared on background, the service goes on and the ringtone starts once ready
+        this.ringtonePrepared = false;
+        this.ringtonePrepareStartTime = SystemClock.elapsedRealtime();
+        this.ringtoneSound.prepareAsync();
+        this.handler.postDelayed(this.ringtonePrepareDeadline, RINGTONE_PREPARE_TIMEOUT_MS);
+
+        return true;
+    }
+
+    /**
+     * Play the ringtone decoded ahead by `WakeupRingtoneCache`, false if it's not decoded or can't be played
+     */
+    private boolean startPcmRingtone() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        WakeupRingtoneCache.Pcm pcm = WakeupRingtoneCache.take(this.ringtoneUrl);
+
+        if (pcm == null) {
+            log("Ringtone not decoded or not opened yet, using the media player");
             return false;
         }
+
+        log("Starting the decoded ringtone");
+
+        try {
+            this.pcmPlayer = new WakeupPcmPlayer(pcm, this.audioAttributes, this.streamType);
+            this.pcmPlayer.setVolume(this.volume * 0.01f);
+            this.pcmPlayer.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            log("Can't play the decoded ringtone: " + e.getMessage());
+
+            if (this.pcmPlayer != null) {
+                this.pcmPlayer.release();
+                this.pcmPlayer = null;
+            }
+
+            return false;
+        }
+
+        this.ringtonePrepareTime = SystemClock.elapsedRealtime() - startTime;
+        WakeupDiagnostics.record("ringtone_prepare_pcm", this.ringtonePrepareTime);
+        this.recordFirstAudio("ringtone");
+
+        return true;
+    }
+
+    private void onRingtonePrepared(MediaPlayer mediaPlayer) {
+        if (mediaPlayer != this.ringtoneSound) {
+            // released while preparing
+            return;
+        }
+
+        this.handler.removeCallbacks(this.ringtonePrepareDeadline);
+        this.ringtonePrepared = true;
+        this.ringtonePrepareTime = SystemClock.elapsedRealtime() - this.ringtonePrepareStartTime;
+
+        log("Ringtone prepared in " + this.ringtonePrepareTime + "ms");
+        WakeupDiagnostics.record("ringtone_prepare", this.ringtonePrepareTime);
+
+        mediaPlayer.start();
+        this.recordFirstAudio("ringtone");
+    }
+
+    private void onRingtoneFailed(String reason) {
+        if (this.ringtoneSound == null) {
+            return;
+        }
+
+        log("Can't play the ringtone: " + reason);
+        this.ringtoneError = reason;
+        WakeupDiagnostics.recordValue("ringtone_error", reason);
+        WakeupDiagnostics.save(this);
+        this.releaseRingtone();
+
+        // nothing else left to play, unless the streaming is still connecting to take over
+        if (this.radioPlayer == null) {
+            this.stop(STOP_ERROR);
+        }
+    }
+
+    private void releaseRingtone() {
+        this.handler.removeCallbacks(this.ringtonePrepareDeadline);
+
+        if (this.pcmPlayer != null) {
+            this.pcmPlayer.release();
+            this.pcmPlayer = null;
+        }
+
+        if (this.ringtoneSound != null) {
+            // stop is not allowed while preparing
+            if (this.ringtonePrepared) {
+                this.ringtoneSound.stop();
+            }
+
+            this.ringtoneSound.release();
+            this.ringtoneSound = null;
+            this.ringtonePrepared = false;
+        }
+    }
+
+    /**
+     * How the alarm was played, sent with the stop event
+     */
+    private JSONObject getPlaybackResult() {
+        JSONObject playback = new JSONObject();
+
+        try {
+            if (this.firstAudioSource != null) {
+                playback.put("source", this.firstAudioSource);
+                playback.put("timeToFirstAudio", this.firstAudioTime);
+            }
+
+            if (this.ringtonePrepareTime != -1) {
+                playback.put("ringtonePrepareTime", this.ringtonePrepareTime);
+            }
+
+            if (this.ringtoneError != null) {
+                playback.put("ringtoneError", this.ringtoneError);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return playback;
     }
 
     private void startRingtoneOrStop() {
         if (ringtoneUrl == null || !this.startRingtone()) {
-            this.stopSelf();
+            this.stop(STOP_ERROR);
         }
     }
 
@@ -518,8 +1190,8 @@ public class WakeupStartService extends Service {
         }
     }
 
-    public boolean isConnectedOnWifi() {
-        ConnectivityManager cm = (ConnectivityManager) this.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    public static boolean isConnectedOnWifi(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
 
         if (cm == null) {
             return false;
@@ -0,0 +1,389 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.upstream.DummyDataSource;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheSpan;
+import com.google.android.exoplayer2.upstream.cache.ContentMetadataMutations;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+/**
+ * Snapshot of the first bytes of the configured stream, kept on disk so the alarm can start playing
+ * before the network answers, or without network at all
+ *
+ * Only for progressive streams, the snapshot is taken while on wifi, up to `alarms_streaming_cache_max_bytes` and `alarms_streaming_cache_seconds`,
+ * and refreshed once older than `REFRESH_INTERVAL_MS`; each refresh is taken on a new cache key, the previous snapshot
+ * is only dropped once the new one succeeds, so the disk usage is bounded by a LRU evictor of twice `MAX_CACHE_BYTES`
+ */
+public class WakeupStreamCache {
+    private static final String LOG_TAG = "WakeupStreamCache";
+
+    private static final String CACHE_DIR = "wakeup_stream";
+
+    // counters and state of the snapshot, on its own file like the diagnostics
+    private static final String PREFS_NAME = "wakeup_stream_cache";
+
+    // highest disk usage, whatever the configured limit
+    public static final long MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_SECONDS = 60;
+
+    private static final long REFRESH_INTERVAL_MS = 6 * 60 * 60 * 1000L;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
+    private static WakeupStreamCache instance;
+
+    // snapshot resolved by `preload` or the last refresh, read by the service without touching the disk
+    private static String snapshotUrl = null;
+    private static String snapshotKey = null;
+
+    // counters not saved yet
+    private static final Map<String, Long> pending = new HashMap<String, Long>();
+
+    private final Context context;
+
+    private final SimpleCache cache;
+
+    private WakeupStreamCache(Context context) {
+        this.context = context;
+        this.cache = new SimpleCache(
+            new File(context.getCacheDir(), CACHE_DIR),
+            new LeastRecentlyUsedCacheEvictor(2 * MAX_CACHE_BYTES),
+            new ExoDatabaseProvider(context)
+        );
+    }
+
+    public static synchronized WakeupStreamCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new WakeupStreamCache(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    /**
+     * Refresh the snapshot on background if it's enabled, on wifi and stale or from another url,
+     * drops it once disabled
+     */
+    public static void refreshIfStale(Context context) {
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        final String url = prefs.getString("alarms_streaming_url", null);
+        final long maxBytes = Math.min(MAX_CACHE_BYTES, prefs.getInt("alarms_streaming_cache_max_bytes", 0));
+        final long maxMs = prefs.getInt("alarms_streaming_cache_seconds", DEFAULT_SECONDS) * 1000L;
+
+        // adaptive streams are split on many small files, only progressive ones are kept
+        if (url == null || maxBytes <= 0 || WakeupStreamType.resolve(appContext, url) != C.TYPE_OTHER) {
+            if (new File(appContext.getCacheDir(), CACHE_DIR).exists()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        WakeupStreamCache.getInstance(appContext).clear();
+                    }
+                });
+            }
+
+            return;
+        }
+
+        SharedPreferences state = getPreferences(appContext);
+
+        if (
+            url.equals(state.getString("url", null))
+                && state.getLong("length", 0) <= maxBytes
+                && System.currentTimeMillis() - state.getLong("refreshed_at", 0) < REFRESH_INTERVAL_MS
+        ) {
+            return;
+        }
+
+        if (!WakeupStartService.isConnectedOnWifi(appContext)) {
+            log("Not on wifi, stream snapshot not refreshed");
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                WakeupStreamCache.getInstance(appContext).refresh(url, maxBytes, maxMs);
+            }
+        });
+    }
+
+    /**
+     * Resolve on background whether there's a snapshot of the configured stream, so `getSnapshotKey` has it
+     * once the alarm plays
+     */
+    public static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+
+        if (prefs.getString("alarms_streaming_url", null) == null || prefs.getInt("alarms_streaming_cache_max_bytes", 0) <= 0) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                WakeupStreamCache.getInstance(appContext).resolveSnapshot();
+            }
+        });
+    }
+
+    /**
+     * Cache key of the snapshot of the url, null if there's none or it wasn't resolved yet, counted as a hit or miss
+     */
+    public static synchronized String getSnapshotKey(String url) {
+        String key = url.equals(snapshotUrl) ? snapshotKey : null;
+
+        increment(key != null ? "hits" : "misses", 1);
+        log("Stream snapshot " + (key != null ? "hit" : "miss"));
+
+        return key;
+    }
+
+    /**
+     * Merge the counters with the saved ones, on background
+     */
+    public static void save(Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        synchronized (WakeupStreamCache.class) {
+            if (pending.isEmpty()) {
+                return;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                merge(getPreferences(appContext));
+            }
+        });
+    }
+
+    /**
+     * Source reading only from the snapshot, it ends with the cached bytes
+     */
+    public DataSource.Factory getSnapshotFactory() {
+        return new CacheDataSourceFactory(
+            this.cache,
+            DummyDataSource.FACTORY,
+            new FileDataSource.Factory(),
+            null,
+            0,
+            new CacheDataSource.EventListener() {
+                @Override
+                public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+                    increment("bytes_served", cachedBytesRead);
+                }
+
+                @Override
+                public void onCacheIgnored(int reason) {
+                }
+            }
+        );
+    }
+
+    /**
+     * Counters and limits, as { hits, misses, bytesServed, refreshes, refreshFailures, length, refreshedAt, diskBytes }
+     */
+    public synchronized JSONObject toJSON() throws JSONException {
+        SharedPreferences state = getPreferences(this.context);
+        JSONObject result = new JSONObject();
+
+        merge(state);
+
+        result.put("hits", state.getLong("hits", 0));
+        result.put("misses", state.getLong("misses", 0));
+        result.put("bytesServed", state.getLong("bytes_served", 0));
+        result.put("refreshes", state.getLong("refreshes", 0));
+        result.put("refreshFailures", state.getLong("refresh_failures", 0));
+        result.put("length", state.getLong("length", 0));
+        result.put("refreshedAt", state.getLong("refreshed_at", 0));
+        result.put("diskBytes", this.cache.getCacheSpace());
+
+        return result;
+    }
+
+    /**
+     * Reset the counters, the snapshot is kept
+     */
+    public synchronized void resetCounters() {
+        synchronized (WakeupStreamCache.class) {
+            pending.clear();
+        }
+
+        getPreferences(this.context).edit()
+            .remove("hits")
+            .remove("misses")
+            .remove("bytes_served")
+            .remove("refreshes")
+            .remove("refresh_failures")
+            .apply();
+    }
+
+    private void refresh(String url, long maxBytes, long maxMs) {
+        long startTime = SystemClock.elapsedRealtime();
+        DataSource upstream = new DefaultDataSourceFactory(this.context, "CordovaWakeupPlugin").createDataSource();
+        DataSource source = new CacheDataSource(this.cache, upstream);
+        byte[] buffer = new byte[16 * 1024];
+        long length = 0;
+        // the previous snapshot is kept, still playable, until this one succeeds
+        String key = "snapshot_" + System.currentTimeMillis();
+
+        log("Refreshing the stream snapshot");
+
+        try {
+            source.open(new DataSpec(Uri.parse(url), 0, C.LENGTH_UNSET, key));
+
+            while (length < maxBytes && SystemClock.elapsedRealtime() - startTime < maxMs) {
+                int read = source.read(buffer, 0, (int) Math.min(buffer.length, maxBytes - length));
+
+                if (read == C.RESULT_END_OF_INPUT) {
+                    break;
+                }
+
+                length += read;
+            }
+        } catch (IOException e) {
+            log("Stream snapshot failed: " + e.getMessage());
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+            }
+        }
+
+        synchronized (this) {
+            // the stream has no end, mark the snapshot end so readers stop there
+            length = this.cache.getCachedLength(key, 0, Long.MAX_VALUE);
+
+            try {
+                ContentMetadataMutations mutations = new ContentMetadataMutations();
+                ContentMetadataMutations.setContentLength(mutations, length);
+                this.cache.applyContentMetadataMutations(key, mutations);
+            } catch (IOException e) {
+                log("Can't set the snapshot length: " + e.getMessage());
+                length = 0;
+            }
+
+            if (length <= 0) {
+                this.removeAllBut(getPreferences(this.context).getString("key", null));
+                increment("refresh_failures", 1);
+                save(this.context);
+                return;
+            }
+
+            getPreferences(this.context).edit()
+                .putString("url", url)
+                .putString("key", key)
+                .putLong("length", length)
+                .putLong("refreshed_at", System.currentTimeMillis())
+                .apply();
+
+            this.removeAllBut(key);
+            setSnapshot(url, key);
+            increment("refreshes", 1);
+            save(this.context);
+        }
+
+        long duration = SystemClock.elapsedRealtime() - startTime;
+        log("Stream snapshot of " + length + " bytes taken in " + duration + "ms");
+        WakeupDiagnostics.record("stream_cache_refresh", duration);
+        WakeupDiagnostics.save(this.context);
+    }
+
+    private synchronized void resolveSnapshot() {
+        SharedPreferences state = getPreferences(this.context);
+        String url = state.getString("url", null);
+        String key = state.getString("key", null);
+
+        if (url != null && key != null && this.cache.getCachedLength(key, 0, Long.MAX_VALUE) > 0) {
+            setSnapshot(url, key);
+        } else {
+            setSnapshot(null, null);
+        }
+    }
+
+    private synchronized void clear() {
+        this.removeAllBut(null);
+        setSnapshot(null, null);
+        getPreferences(this.context).edit().remove("url").remove("key").remove("length").remove("refreshed_at").apply();
+    }
+
+    /**
+     * Drop every cached key other than the given one, the partial downloads left by a killed refresh included
+     */
+    private void removeAllBut(String keptKey) {
+        for (String key : new ArrayList<String>(this.cache.getKeys())) {
+            if (key.equals(keptKey)) {
+                continue;
+            }
+
+            for (CacheSpan span : new ArrayList<CacheSpan>(this.cache.getCachedSpans(key))) {
+                this.cache.removeSpan(span);
+            }
+        }
+    }
+
+    private static synchronized void setSnapshot(String url, String key) {
+        snapshotUrl = url;
+        snapshotKey = key;
+    }
+
+    /**
+     * Bump a counter, only kept in memory until `save` is called
+     */
+    private static synchronized void increment(String name, long delta) {
+        Long value = pending.get(name);
+        pending.put(name, value == null ? delta : value + delta);
+    }
+
+    private static synchronized void merge(SharedPreferences state) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = state.edit();
+
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            editor.putLong(entry.getKey(), state.getLong(entry.getKey(), 0) + entry.getValue());
+        }
+
+        editor.apply();
+        pending.clear();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
@@ -0,0 +1,156 @@
+package com.eltonfaust.wakeupplugin;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * Resolves the kind of the configured stream (HLS, DASH, SmoothStreaming or a progressive stream),
+ * from the `alarms_streaming_format` setting, the url, or the content type answered by the server
+ *
+ * The server is only asked when the url doesn't tell it, ahead of the alarm, and the answer is kept for that url
+ */
+public class WakeupStreamType {
+    private static final String LOG_TAG = "WakeupStreamType";
+
+    public static final String FORMAT_AUTO = "auto";
+    public static final String FORMAT_HLS = "hls";
+    public static final String FORMAT_DASH = "dash";
+    public static final String FORMAT_SS = "ss";
+    public static final String FORMAT_PROGRESSIVE = "progressive";
+
+    private static final int PROBE_TIMEOUT_MS = 10000;
+
+    private static final Executor executor = WakeupBackground.newLane();
+
+    /**
+     * One of `C.TYPE_HLS`, `C.TYPE_DASH`, `C.TYPE_SS` or `C.TYPE_OTHER` for a progressive stream
+     */
+    public static int resolve(Context context, String url) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String format = prefs.getString("alarms_streaming_format", FORMAT_AUTO);
+
+        if (!FORMAT_AUTO.equals(format)) {
+            return getType(format);
+        }
+
+        int type = Util.inferContentType(Uri.parse(url));
+
+        if (type == C.TYPE_OTHER && url.equals(prefs.getString("alarms_streaming_probed_url", null))) {
+            type = prefs.getInt("alarms_streaming_probed_type", C.TYPE_OTHER);
+        }
+
+        return type;
+    }
+
+    public static boolean isFormat(String format) {
+        return FORMAT_AUTO.equals(format)
+            || FORMAT_HLS.equals(format)
+            || FORMAT_DASH.equals(format)
+            || FORMAT_SS.equals(format)
+            || FORMAT_PROGRESSIVE.equals(format);
+    }
+
+    /**
+     * Ask the server the content type of the configured stream on background, if needed,
+     * then refresh its on disk snapshot, that only applies to progressive streams
+     */
+    public static void update(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        final String url = prefs.getString("alarms_streaming_url", null);
+
+        if (
+            url == null
+                || !FORMAT_AUTO.equals(prefs.getString("alarms_streaming_format", FORMAT_AUTO))
+                || Util.inferContentType(Uri.parse(url)) != C.TYPE_OTHER
+                || url.equals(prefs.getString("alarms_streaming_probed_url", null))
+        ) {
+            WakeupStreamCache.refreshIfStale(appContext);
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int type = probe(url);
+
+                    log("Stream type of " + url + ": " + type);
+                    prefs.edit()
+                        .putString("alarms_streaming_probed_url", url)
+                        .putInt("alarms_streaming_probed_type", type)
+                        .apply();
+                } catch (IOException e) {
+                    // asked again on the next update
+                    log("Can't probe the stream type: " + e.getMessage());
+                }
+
+                WakeupStreamCache.refreshIfStale(appContext);
+            }
+        });
+    }
+
+    private static int probe(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        try {
+            // only the headers are read, some radio servers don't answer HEAD requests
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setInstanceFollowRedirects(true);
+
+            if (connection.getResponseCode() >= 400) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+
+            String contentType = connection.getContentType();
+
+            if (contentType == null) {
+                return C.TYPE_OTHER;
+            }
+
+            contentType = contentType.toLowerCase(Locale.ROOT);
+
+            // `audio/x-mpegurl` is left out, it's also used by plain m3u playlists
+            if (contentType.startsWith("application/vnd.apple.mpegurl") || contentType.startsWith("application/x-mpegurl")) {
+                return C.TYPE_HLS;
+            } else if (contentType.startsWith("application/dash+xml")) {
+                return C.TYPE_DASH;
+            } else if (contentType.startsWith("application/vnd.ms-sstr+xml")) {
+                return C.TYPE_SS;
+            }
+
+            return C.TYPE_OTHER;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int getType(String format) {
+        if (FORMAT_HLS.equals(format)) {
+            return C.TYPE_HLS;
+        } else if (FORMAT_DASH.equals(format)) {
+            return C.TYPE_DASH;
+        } else if (FORMAT_SS.equals(format)) {
+            return C.TYPE_SS;
+        }
+
+        return C.TYPE_OTHER;
+    }
+
+    private static void log(String log) {
+        Log.d(LOG_TAG, log);
+    }
+}
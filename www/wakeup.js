@@ -10,8 +10,8 @@ var Wakeup = (function (){
         this.STREAM_ALARM = 4;
     }
 
-    Wakeup.prototype.bind = function (success, error) {
-        exec(success, error, "WakeupPlugin", "bind", []);
+    Wakeup.prototype.bind = function (success, error, options) {
+        exec(success, error, "WakeupPlugin", "bind", options ? [options] : []);
     };
 
     Wakeup.prototype.configure = function (success, error, options) {
@@ -54,6 +54,30 @@ var Wakeup = (function (){
         exec(success, error, "WakeupPlugin", "wakeup", [options]);
     };
 
+    Wakeup.prototype.addAlarm = function (success, error, alarm) {
+        exec(success, error, "WakeupPlugin", "addAlarm", [alarm]);
+    };
+
+    Wakeup.prototype.updateAlarm = function (success, error, alarm) {
+        exec(success, error, "WakeupPlugin", "updateAlarm", [alarm]);
+    };
+
+    Wakeup.prototype.removeAlarm = function (success, error, alarmId) {
+        exec(success, error, "WakeupPlugin", "removeAlarm", [alarmId]);
+    };
+
+    Wakeup.prototype.getDiagnostics = function (success, error, reset) {
+        exec(success, error, "WakeupPlugin", "getDiagnostics", [!!reset]);
+    };
+
+    Wakeup.prototype.getFireStats = function (success, error, reset) {
+        exec(success, error, "WakeupPlugin", "getFireStats", [!!reset]);
+    };
+
+    Wakeup.prototype.getMetrics = function (success, error, reset) {
+        exec(success, error, "WakeupPlugin", "getMetrics", [!!reset]);
+    };
+
     Wakeup.prototype.stop = function (success, error) {
         exec(success, error, "WakeupPlugin", "stop", []);
     };